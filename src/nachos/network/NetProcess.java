@@ -16,6 +16,15 @@ public class NetProcess extends VMProcess {
 	super();
     }
 
+    /**
+     * Allocate a new process of the same class as this one.
+     *
+     * @return	a new process.
+     */
+    protected UserProcess newProcess() {
+	return new NetProcess();
+    }
+
     private static final int
 	syscallConnect = 11,
 	syscallAccept = 12;
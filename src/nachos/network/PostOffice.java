@@ -13,11 +13,18 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>BoundedChannel</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxSize</tt> messages (set in
+ * <tt>nachos.conf</tt>). A message that arrives for a full mailbox is
+ * dropped, just as if the network had lost it, rather than stalling delivery
+ * to every other port or letting a slow receiver use unbounded memory.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedChannel</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
@@ -26,9 +33,12 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	int mailboxSize = Config.getInteger("PostOffice.mailboxSize", 16);
+	Lib.assertTrue(mailboxSize > 0, "bad value for PostOffice.mailboxSize");
+
+	queues = newMailboxes(MailMessage.portLimit);
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedChannel<MailMessage>(mailboxSize);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -58,7 +68,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues[port].take();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -89,10 +99,16 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].tryPut(mail))
+		Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped");
 	}
     }
 
+    @SuppressWarnings("unchecked")
+    private static BoundedChannel<MailMessage>[] newMailboxes(int count) {
+	return (BoundedChannel<MailMessage>[]) new BoundedChannel<?>[count];
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
      * link.
@@ -125,7 +141,7 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedChannel<MailMessage>[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
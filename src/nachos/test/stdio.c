@@ -16,3 +16,34 @@ void fputc(char c, int fd) {
 void fputs(const char *s, int fd) {
     write(fd, (char*) s, strlen(s));
 }
+
+/* Add a request to a submission ring. Returns 0, or -1 if the ring is full. */
+int ring_prep(struct ring *ring, struct ring_sqe *sqes, int entries,
+	      int opcode, int arg0, int arg1, int arg2, int user_data) {
+    struct ring_sqe *sqe;
+
+    if (ring->sq_tail - ring->sq_head == entries)
+	return -1;
+
+    sqe = &sqes[ring->sq_tail & (entries-1)];
+    sqe->opcode = opcode;
+    sqe->arg0 = arg0;
+    sqe->arg1 = arg1;
+    sqe->arg2 = arg2;
+    sqe->user_data = user_data;
+    ring->sq_tail++;
+
+    return 0;
+}
+
+/* Take a completion off a completion ring. Returns 1, or 0 if it is empty. */
+int ring_reap(struct ring *ring, struct ring_cqe *cqes, int entries,
+	      struct ring_cqe *cqe) {
+    if (ring->cq_head == ring->cq_tail)
+	return 0;
+
+    *cqe = cqes[ring->cq_head & (entries-1)];
+    ring->cq_head++;
+
+    return 1;
+}
@@ -30,6 +30,11 @@ void fputs(const char *s, FILE stream);
 #define putchar(c)	putc(c,stdout)
 #define beep()		putchar(0x07)
 
+int  ring_prep(struct ring *ring, struct ring_sqe *sqes, int entries,
+	       int opcode, int arg0, int arg1, int arg2, int user_data);
+int  ring_reap(struct ring *ring, struct ring_cqe *cqes, int entries,
+	       struct ring_cqe *cqe);
+
 void vsprintf(char *s, char *format, va_list ap);
 void vfprintf(FILE f, char *format, va_list ap);
 void vprintf(char *format, va_list ap);
@@ -25,6 +25,10 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallRingRegister	15
+#define syscallRingEnter	16
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -181,6 +185,99 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * One buffer for readv() or writev(): iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov, in order, with
+ * a single system call. The transfer stops early if a buffer is not filled
+ * completely, just as read() can return fewer bytes than requested. At most
+ * 16 buffers may be given.
+ *
+ * On success, the total number of bytes read is returned. On error, -1 is
+ * returned; this can happen for the same reasons as for read(), if iovcnt is
+ * negative or too large, or if any iov_len is negative.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov, in order,
+ * with a single system call. At most 16 buffers may be given.
+ *
+ * On success, the total number of bytes written is returned. On error, -1 is
+ * returned; this can happen for the same reasons as for write(), if iovcnt
+ * is negative or too large, or if any iov_len is negative.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * A submission ring entry: a request to make system call opcode with
+ * arguments arg0, arg1 and arg2. The opcode is the syscall number of creat,
+ * open, read, write, close, unlink, readv or writev. user_data is copied to
+ * the request's completion, so that it can be matched with the request.
+ */
+struct ring_sqe {
+    int opcode;
+    int arg0;
+    int arg1;
+    int arg2;
+    int user_data;
+};
+
+/**
+ * A completion ring entry: the user_data of a request, and the value its
+ * system call returned.
+ */
+struct ring_cqe {
+    int user_data;
+    int result;
+};
+
+/**
+ * The indices of a submission ring and a completion ring, which share their
+ * size. Indices only ever increase; entry i of a ring is at i modulo its
+ * size. The program adds requests at sq_tail and removes completions at
+ * cq_head, and the kernel removes requests at sq_head and adds completions
+ * at cq_tail.
+ */
+struct ring {
+    unsigned sq_head;
+    unsigned sq_tail;
+    unsigned cq_head;
+    unsigned cq_tail;
+};
+
+/**
+ * Register a submission ring and a completion ring, each with entries
+ * entries, for ring_enter() to use. entries must be a power of two no
+ * larger than 256. ring, sqes and cqes must stay valid for as long as the
+ * process uses them; the process should initialize all four indices of ring
+ * to the same value before registering it. Registering a new ring replaces
+ * the old one.
+ *
+ * Returns 0 on success, or -1 if entries is not valid or any of the memory
+ * is not.
+ */
+int ring_register(struct ring *ring, struct ring_sqe *sqes,
+		  struct ring_cqe *cqes, int entries);
+
+/**
+ * Carry out up to count requests from the submission ring, in order, and
+ * post a completion for each, all with a single system call. Stops early if
+ * there are fewer requests than count, or if the completion ring is full.
+ * The sq_head and cq_tail indices are updated before ring_enter() returns.
+ *
+ * Returns the number of requests carried out, or -1 if no ring is
+ * registered, count is negative, or the ring's indices are not valid. A
+ * request that fails has -1 as its completion's result.
+ */
+int ring_enter(int count);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
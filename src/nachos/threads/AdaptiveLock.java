@@ -0,0 +1,292 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that, when it finds the lock busy, first waits a short while
+ * without blocking, and only goes to sleep on the lock if that fails.
+ *
+ * <p>
+ * Blocking costs a trip through the lock's wait queue, a sleep, and a wakeup
+ * when the lock is released. If the holder is about to release the lock, it
+ * is cheaper to let it finish and then take the lock uncontended. On a
+ * multiprocessor, a waiter would busy-wait while the holder runs on another
+ * CPU. Nachos has a single processor, so the holder can only make progress
+ * if the waiter gives up the CPU. Here the waiter spins by yielding, for as
+ * long as the holder is runnable. A holder that is itself blocked will not
+ * release the lock soon, so the waiter blocks at once. So does a caller that
+ * has interrupts disabled, such as <tt>Condition2.sleep()</tt> reacquiring
+ * the lock, since no time passes for it while it yields.
+ *
+ * <p>
+ * The spin budget, in ticks, tunes itself. After a spin that ends with the
+ * lock, the budget moves toward twice the average time such spins took.
+ * After a spin that ends in blocking, the budget is halved, and once it is
+ * down to nothing, only one contended acquisition in 16 spins, to find out
+ * whether spinning pays off again. A lock whose critical sections are short
+ * therefore spins just long enough, and one whose holders often block soon
+ * stops spinning. The budget is bounded by
+ * <tt>AdaptiveLock.maxSpinTicks</tt> in <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Each lock counts its acquisitions, the acquisitions that found it busy,
+ * the ticks spent waiting for it, and how many contended acquisitions were
+ * satisfied by spinning rather than blocking.
+ */
+public class AdaptiveLock extends Lock {
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     */
+    public AdaptiveLock() {
+	if (maxSpinTicks < 0) {
+	    maxSpinTicks = Config.getInteger("AdaptiveLock.maxSpinTicks",
+					     Stats.TimerTicks);
+	    Lib.assertTrue(maxSpinTicks >= 0,
+			   "bad value for AdaptiveLock.maxSpinTicks");
+	}
+
+	spinLimit = Math.min(initialSpinTicks, maxSpinTicks);
+    }
+
+    /**
+     * Atomically acquire this lock, spinning for a while before blocking if it
+     * is busy. The current thread must not already hold this lock.
+     */
+    public void acquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	numAcquisitions++;
+
+	if (getHolder() == null) {
+	    super.acquire();
+	    Machine.interrupt().restore(intStatus);
+	    return;
+	}
+
+	numContended++;
+	long start = Machine.timer().getTime();
+
+	spin(intStatus, Long.MAX_VALUE, numContended % probeInterval == 0);
+
+	super.acquire();
+
+	totalWaitTicks += Machine.timer().getTime() - start;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock, spinning for a while before blocking if it
+     * is busy, but give up if that takes more than <i>ticks</i> ticks. The
+     * current thread must not already hold this lock. The time spent waiting
+     * counts towards the wait ticks whether or not the lock is acquired.
+     *
+     * @param	ticks	the maximum number of ticks to wait. If not
+     *			positive, only acquire the lock if it is free.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (getHolder() == null) {
+	    numAcquisitions++;
+	    super.tryAcquire(0);
+	    Machine.interrupt().restore(intStatus);
+	    return true;
+	}
+
+	if (ticks <= 0) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	long start = Machine.timer().getTime();
+
+	spin(intStatus, ticks, (numContended+1) % probeInterval == 0);
+
+	long waited = Machine.timer().getTime() - start;
+	boolean acquired = super.tryAcquire(ticks - waited);
+
+	totalWaitTicks += Machine.timer().getTime() - start;
+	if (acquired) {
+	    numAcquisitions++;
+	    numContended++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Spin, by yielding, while the holder of this lock is runnable, for at
+     * most the spin budget or <i>maxTicks</i> ticks, whichever is less, and
+     * adjust the budget by how the spin turned out. Must be called with
+     * interrupts disabled.
+     *
+     * @param	intStatus	<tt>true</tt> if interrupts were enabled when the
+     *				lock was requested.
+     * @param	maxTicks	the longest the caller is willing to wait.
+     * @param	probe		<tt>true</tt> to spin even if the budget is
+     *				down to nothing.
+     */
+    private void spin(boolean intStatus, long maxTicks, boolean probe) {
+	long start = Machine.timer().getTime();
+	long spun = 0;
+
+	// once spinning has stopped paying off, only try it now and then
+	long budget = spinLimit;
+	if (budget == 0 && probe)
+	    budget = Math.min(initialSpinTicks, maxSpinTicks);
+	long limit = Math.min(budget, maxTicks);
+
+	// spinning needs interrupts, for time to pass while it yields
+	boolean spin = intStatus && limit > 0;
+
+	while (spin && getHolder() != null && getHolder().isRunnable()
+	       && spun < limit) {
+	    Machine.interrupt().enable();
+	    KThread.yield();
+	    Machine.interrupt().disable();
+
+	    spun = Machine.timer().getTime() - start;
+	}
+
+	if (spin && getHolder() == null) {
+	    numSpinAcquisitions++;
+	    spinAverage += (spun - spinAverage) / 8;
+	    spinLimit = Math.min(Math.max(2*spinAverage, Stats.KernelTick),
+				 maxSpinTicks);
+	}
+	else if (spin && budget <= maxTicks) {
+	    // only a spin the budget itself cut short says spinning failed
+	    spinLimit = (spinLimit < 2*Stats.KernelTick) ? 0 : spinLimit / 2;
+	}
+    }
+
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquisitions() {
+	return numAcquisitions;
+    }
+
+    /**
+     * Return the number of acquisitions that found this lock busy.
+     *
+     * @return	the number of contended acquisitions.
+     */
+    public long getContendedAcquisitions() {
+	return numContended;
+    }
+
+    /**
+     * Return the number of contended acquisitions that got this lock by
+     * spinning, without blocking.
+     *
+     * @return	the number of acquisitions satisfied by spinning.
+     */
+    public long getSpinAcquisitions() {
+	return numSpinAcquisitions;
+    }
+
+    /**
+     * Return the total number of ticks threads have spent waiting for this
+     * lock, spinning or blocked.
+     *
+     * @return	the total wait time, in ticks.
+     */
+    public long getWaitTicks() {
+	return totalWaitTicks;
+    }
+
+    /**
+     * Return the current spin budget.
+     *
+     * @return	the number of ticks the next contended acquisition will spin
+     *		for, at most.
+     */
+    public long getSpinLimit() {
+	return spinLimit;
+    }
+
+    /**
+     * Return a summary of this lock's statistics.
+     */
+    public String toString() {
+	return "AdaptiveLock: acquisitions " + numAcquisitions
+	    + ", contended " + numContended
+	    + ", by spinning " + numSpinAcquisitions
+	    + ", wait ticks " + totalWaitTicks
+	    + ", spin limit " + spinLimit;
+    }
+
+    /**
+     * Compare an adaptive lock with a plain <tt>Lock</tt> under short critical
+     * sections that yield once. Print the adaptive lock's statistics, and the
+     * simulated ticks and host nanoseconds each run took. On one simulated
+     * processor a spin costs simulated time like any other yield; what it
+     * saves is the lock's wait queue and the sleep and wakeup.
+     *
+     * @param	numThreads	the number of threads contending for the lock.
+     * @param	numOps		the number of critical sections per thread.
+     */
+    public static void benchmark(int numThreads, int numOps) {
+	AdaptiveLock adaptive = new AdaptiveLock();
+
+	long startNanos = System.nanoTime();
+	long adaptiveTicks = runContended(numThreads, numOps, adaptive);
+	long adaptiveNanos = System.nanoTime() - startNanos;
+
+	startNanos = System.nanoTime();
+	long plainTicks = runContended(numThreads, numOps, new Lock());
+	long plainNanos = System.nanoTime() - startNanos;
+
+	System.out.println(adaptive + "; " + numThreads + " threads: "
+			   + adaptiveTicks + " ticks, " + adaptiveNanos
+			   + " ns; Lock: " + plainTicks + " ticks, "
+			   + plainNanos + " ns");
+    }
+
+    private static long runContended(int numThreads, final int numOps,
+				     final Lock lock) {
+	long start = Machine.timer().getTime();
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numOps; j++) {
+			    lock.acquire();
+			    KThread.yield();
+			    lock.release();
+			    KThread.yield();
+			}
+		    }
+		});
+	    threads[i].setName("contender" + i).fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	return Machine.timer().getTime() - start;
+    }
+
+    private long numAcquisitions = 0;
+    private long numContended = 0;
+    private long numSpinAcquisitions = 0;
+    private long totalWaitTicks = 0;
+
+    private long spinLimit;
+    private long spinAverage = 0;
+
+    private static int maxSpinTicks = -1;
+    private static final int initialSpinTicks = 100;
+    private static final int probeInterval = 16;
+}
@@ -11,12 +11,32 @@ import java.util.Comparator;
  */
 public class Alarm {
 
+  /**
+   * A synchronization object whose waiters can give up after a timeout. The
+   * timeout is delivered by the alarm, so no thread has to poll for it.
+   */
+  interface TimedWaitQueue
+  {
+    /**
+     * Stop the specified thread waiting on this object, if it still is, and
+     * let it run again. Called from the timer interrupt handler, with
+     * interrupts disabled.
+     *
+     * @param thread the thread whose wait has timed out
+     * @return true if the thread was still waiting
+     */
+    boolean timeout(KThread thread);
+  }// TimedWaitQueue
+
   // Entity class that represents a KThread that is waiting until a certain
-  // time to wake up
-  private class WaitingThread implements Comparable<WaitingThread>
+  // time to wake up, or, if it has a queue, whose wait on the queue times
+  // out at that time
+  class WaitingThread implements Comparable<WaitingThread>
   {
     private KThread thread;
     private long wakeUpTime;
+    private TimedWaitQueue queue = null;
+    private boolean expired = false;
 
     /**
      * Create a new WaitingThread container.
@@ -80,7 +100,8 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, once it has used up its
+     * <tt>ThreadedKernel.quantum</tt>.
      */
     public void timerInterrupt() {
 
@@ -92,10 +113,26 @@ public class Alarm {
 	// lock this area down to prevent race conditions in the heap
 	boolean intStatus = Machine.interrupt().disable();
 	
-	waitingThreads.poll().getThread().ready();
+	WaitingThread waiting = waitingThreads.poll();
+	if(waiting.queue == null)
+	{
+	  waiting.getThread().ready();
+	}// if
+	else
+	{
+	  waiting.expired = waiting.queue.timeout(waiting.getThread());
+	}// else
 	
 	Machine.interrupt().restore(intStatus);
       }// for
+
+      // time-slice the current thread, but only switch once all the
+      // sleepers due at this tick have been put back on the ready queue
+      if(ThreadedKernel.quantum > 0 &&
+	 KThread.currentSliceTicks() >= ThreadedKernel.quantum)
+      {
+	KThread.preempt();
+      }// if
     }
 
     /**
@@ -130,4 +167,45 @@ public class Alarm {
     	Machine.interrupt().restore(intStatus);
       }// if
     }
+
+    /**
+     * Arrange for the current thread's wait on <i>queue</i> to time out once
+     * at least <i>x</i> ticks have passed: in the first timer interrupt after
+     * then, <tt>queue.timeout()</tt> is called for the thread. Must be called
+     * with interrupts disabled, before the thread blocks, and must be paired
+     * with <tt>cancelTimeout()</tt> once the thread runs again.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	queue	the object the current thread is about to wait on.
+     * @return	the timeout, to pass to <tt>cancelTimeout()</tt>.
+     */
+    WaitingThread setTimeout(long x, TimedWaitQueue queue) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      WaitingThread waiting =
+	new WaitingThread(KThread.currentThread(), Machine.timer().getTime() + x);
+      waiting.queue = queue;
+      waitingThreads.offer(waiting);
+
+      return waiting;
+    }
+
+    /**
+     * Cancel a timeout set by <tt>setTimeout()</tt>, if it has not expired
+     * yet. Must be called with interrupts disabled.
+     *
+     * @param	timeout	the timeout to cancel.
+     * @return	<tt>true</tt> if the timeout expired and ended the wait, or
+     *		<tt>false</tt> if the thread was woken some other way.
+     */
+    boolean cancelTimeout(WaitingThread timeout) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      if(!timeout.expired)
+      {
+	waitingThreads.remove(timeout);
+      }// if
+
+      return timeout.expired;
+    }
 }
@@ -0,0 +1,124 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads, its <i>parties</i>, wait
+ * for each other. Each party calls <tt>await()</tt>; the first ones to arrive
+ * go to sleep, and the last one to arrive wakes them all and continues. The
+ * barrier then starts over, so the same threads can use it to step through
+ * several phases together.
+ *
+ * <p>
+ * Unlike a loop around <tt>Condition2.wakeAll()</tt>, no woken thread has to
+ * check whether it was woken for the right reason: every thread waiting on
+ * the barrier is waiting for the same trip, so the last arrival moves all of
+ * them to the ready queue in one pass. Waiting threads are kept in a queue of
+ * the current scheduler, so this works with any <tt>Scheduler</tt>.
+ *
+ * <p>
+ * At most <i>parties</i> threads may be waiting at the barrier at once.
+ *
+ * @see	Phaser
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them continues.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until all parties have called <tt>await()</tt>.
+     *
+     * @return	the number of parties that arrived after this one, so 0 for
+     *		the party that tripped the barrier.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int remaining = parties - ++arrived;
+
+	if (remaining > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    arrived = 0;
+	    numTrips++;
+
+	    for (KThread thread = waitQueue.nextThread(); thread != null;
+		 thread = waitQueue.nextThread())
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return remaining;
+    }
+
+    /**
+     * Return the number of parties this barrier waits for.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Return the number of times every party has arrived at this barrier.
+     *
+     * @return	the number of trips.
+     */
+    public int getTrips() {
+	return numTrips;
+    }
+
+    /**
+     * Test that this module is working: no thread may start a phase before
+     * every thread has finished the previous one.
+     */
+    public static void selfTest() {
+	final int numThreads = 5, numPhases = 10;
+	final Barrier barrier = new Barrier(numThreads);
+	final int[] finished = new int[numPhases];
+	final int[] tripped = new int[1];
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int phase=0; phase<numPhases; phase++) {
+			    if (phase > 0)
+				Lib.assertTrue(finished[phase-1] == numThreads);
+			    for (int j=0; j<id; j++)
+				KThread.yield();
+			    finished[phase]++;
+
+			    if (barrier.await() == 0)
+				tripped[0]++;
+			}
+		    }
+		});
+	    threads[i].setName("barrier party " + i).fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(barrier.getTrips() == numPhases);
+	Lib.assertTrue(tripped[0] == numPhases);
+    }
+
+    private int parties;
+    private int arrived = 0;
+    private int numTrips = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
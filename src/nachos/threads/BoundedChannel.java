@@ -0,0 +1,239 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A synchronized FIFO queue with a fixed capacity, for any number of
+ * producers and consumers.
+ *
+ * <p>
+ * Unlike <tt>SynchList</tt>, a bounded channel never grows: its items live in
+ * an array allocated once, and a producer that finds the channel full either
+ * waits for a consumer to make room or, with <tt>tryPut()</tt>, is told to
+ * back off. Producers and consumers wait on separate condition variables, so
+ * freeing a slot only wakes producers and adding an item only wakes
+ * consumers. Items can also be added and removed in batches, with one lock
+ * acquisition per batch.
+ *
+ * <p>
+ * <tt>BoundedIntChannel</tt> is the same queue for <tt>int</tt>s, without
+ * boxing.
+ *
+ * @see	BoundedIntChannel
+ */
+public class BoundedChannel<T> extends RingBuffer {
+    /**
+     * Allocate a new, empty channel.
+     *
+     * @param	capacity	the maximum number of items the channel holds.
+     */
+    public BoundedChannel(int capacity) {
+	super(capacity);
+
+	items = new Object[capacity];
+    }
+
+    /**
+     * Add an item to the end of the channel, waiting for room if the channel
+     * is full.
+     *
+     * @param	item	the item to add. Must not be <tt>null</tt>.
+     */
+    public void put(T item) {
+	Lib.assertTrue(item != null);
+
+	lock.acquire();
+	awaitSpace(true);
+	items[tail()] = item;
+	added(1);
+	lock.release();
+    }
+
+    /**
+     * Add an item to the end of the channel if there is room.
+     *
+     * @param	item	the item to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the item was added, or <tt>false</tt> if the
+     *		channel was full.
+     */
+    public boolean tryPut(T item) {
+	Lib.assertTrue(item != null);
+
+	lock.acquire();
+	boolean success = awaitSpace(false);
+	if (success) {
+	    items[tail()] = item;
+	    added(1);
+	}
+	lock.release();
+
+	return success;
+    }
+
+    /**
+     * Add <i>len</i> items from <i>src</i>, starting at <i>off</i>, to the
+     * end of the channel, waiting for room as necessary. Each time there is
+     * room, as many items are added as fit, so other producers' items may be
+     * interleaved with these if the channel fills up.
+     *
+     * @param	src	the array holding the items to add.
+     * @param	off	the index of the first item to add.
+     * @param	len	the number of items to add.
+     */
+    public void put(T[] src, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= src.length);
+
+	lock.acquire();
+	while (len > 0) {
+	    awaitSpace(true);
+
+	    int n = Math.min(len, contiguousSpace());
+	    System.arraycopy(src, off, items, tail(), n);
+	    added(n);
+
+	    off += n;
+	    len -= n;
+	}
+	lock.release();
+    }
+
+    /**
+     * Remove the item at the front of the channel, waiting for one if the
+     * channel is empty.
+     *
+     * @return	the item removed.
+     */
+    public T take() {
+	lock.acquire();
+	awaitItems(true);
+	T item = removeFirst();
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Remove the item at the front of the channel, if there is one.
+     *
+     * @return	the item removed, or <tt>null</tt> if the channel was empty.
+     */
+    public T tryTake() {
+	lock.acquire();
+	T item = awaitItems(false) ? removeFirst() : null;
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Wait until the channel is not empty, and then remove as many items as
+     * are available, up to <i>len</i>, into <i>dst</i> starting at
+     * <i>off</i>.
+     *
+     * @param	dst	the array in which to store the items.
+     * @param	off	the index at which to store the first item.
+     * @param	len	the maximum number of items to remove.
+     * @return	the number of items removed, which is at least 1 unless
+     *		<i>len</i> is 0.
+     */
+    public int drain(T[] dst, int off, int len) {
+	return drain(dst, off, len, true);
+    }
+
+    /**
+     * Remove as many items as are available, up to <i>len</i>, into
+     * <i>dst</i> starting at <i>off</i>, without waiting.
+     *
+     * @param	dst	the array in which to store the items.
+     * @param	off	the index at which to store the first item.
+     * @param	len	the maximum number of items to remove.
+     * @return	the number of items removed, which is 0 if the channel was
+     *		empty.
+     */
+    public int tryDrain(T[] dst, int off, int len) {
+	return drain(dst, off, len, false);
+    }
+
+    private int drain(T[] dst, int off, int len, boolean block) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= dst.length);
+
+	if (len == 0)
+	    return 0;
+
+	lock.acquire();
+
+	int amount = 0;
+	if (awaitItems(block)) {
+	    while (amount < len && count > 0) {
+		int n = Math.min(len - amount, contiguousItems());
+		System.arraycopy(items, head, dst, off + amount, n);
+		Arrays.fill(items, head, head + n, null);
+		amount += n;
+		removed(n);
+	    }
+	}
+
+	lock.release();
+	return amount;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeFirst() {
+	T item = (T) items[head];
+	items[head] = null;
+	removed(1);
+
+	return item;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	final BoundedChannel<Integer> channel = new BoundedChannel<Integer>(4);
+	final int count = 100;
+
+	Lib.assertTrue(channel.tryTake() == null);
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    Integer[] batch = new Integer[10];
+		    for (int i=0; i<count; ) {
+			if (i % 20 == 0) {
+			    for (int j=0; j<batch.length; j++)
+				batch[j] = Integer.valueOf(i+j);
+			    channel.put(batch, 0, batch.length);
+			    i += batch.length;
+			}
+			else {
+			    channel.put(Integer.valueOf(i++));
+			}
+		    }
+		}
+	    });
+	producer.setName("producer").fork();
+
+	Integer[] received = new Integer[7];
+	for (int i=0; i<count; ) {
+	    if (i % 2 == 0) {
+		Lib.assertTrue(channel.take().intValue() == i++);
+	    }
+	    else {
+		int n = channel.drain(received, 0, received.length);
+		for (int j=0; j<n; j++)
+		    Lib.assertTrue(received[j].intValue() == i++);
+	    }
+	    Lib.assertTrue(channel.size() <= channel.capacity());
+	}
+
+	producer.join();
+
+	Lib.assertTrue(channel.tryPut(Integer.valueOf(0)));
+	Lib.assertTrue(channel.tryDrain(received, 0, received.length) == 1);
+	Lib.assertTrue(channel.tryDrain(received, 0, received.length) == 0);
+    }
+
+    private Object[] items;
+}
@@ -0,0 +1,208 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>BoundedChannel</tt> of <tt>int</tt>s. Items are stored in an
+ * <tt>int</tt> array, so passing them through the channel never allocates.
+ *
+ * <p>
+ * There is no <tt>tryTake()</tt>, because no <tt>int</tt> value is free to
+ * mean that the channel was empty; use <tt>tryDrain()</tt> with a length of 1
+ * instead.
+ *
+ * @see	BoundedChannel
+ */
+public class BoundedIntChannel extends RingBuffer {
+    /**
+     * Allocate a new, empty channel.
+     *
+     * @param	capacity	the maximum number of items the channel holds.
+     */
+    public BoundedIntChannel(int capacity) {
+	super(capacity);
+
+	items = new int[capacity];
+    }
+
+    /**
+     * Add an item to the end of the channel, waiting for room if the channel
+     * is full.
+     *
+     * @param	item	the item to add.
+     */
+    public void put(int item) {
+	lock.acquire();
+	awaitSpace(true);
+	items[tail()] = item;
+	added(1);
+	lock.release();
+    }
+
+    /**
+     * Add an item to the end of the channel if there is room.
+     *
+     * @param	item	the item to add.
+     * @return	<tt>true</tt> if the item was added, or <tt>false</tt> if the
+     *		channel was full.
+     */
+    public boolean tryPut(int item) {
+	lock.acquire();
+	boolean success = awaitSpace(false);
+	if (success) {
+	    items[tail()] = item;
+	    added(1);
+	}
+	lock.release();
+
+	return success;
+    }
+
+    /**
+     * Add <i>len</i> items from <i>src</i>, starting at <i>off</i>, to the
+     * end of the channel, waiting for room as necessary. Each time there is
+     * room, as many items are added as fit, so other producers' items may be
+     * interleaved with these if the channel fills up.
+     *
+     * @param	src	the array holding the items to add.
+     * @param	off	the index of the first item to add.
+     * @param	len	the number of items to add.
+     */
+    public void put(int[] src, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= src.length);
+
+	lock.acquire();
+	while (len > 0) {
+	    awaitSpace(true);
+
+	    int n = Math.min(len, contiguousSpace());
+	    System.arraycopy(src, off, items, tail(), n);
+	    added(n);
+
+	    off += n;
+	    len -= n;
+	}
+	lock.release();
+    }
+
+    /**
+     * Remove the item at the front of the channel, waiting for one if the
+     * channel is empty.
+     *
+     * @return	the item removed.
+     */
+    public int take() {
+	lock.acquire();
+	awaitItems(true);
+	int item = items[head];
+	removed(1);
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Wait until the channel is not empty, and then remove as many items as
+     * are available, up to <i>len</i>, into <i>dst</i> starting at
+     * <i>off</i>.
+     *
+     * @param	dst	the array in which to store the items.
+     * @param	off	the index at which to store the first item.
+     * @param	len	the maximum number of items to remove.
+     * @return	the number of items removed, which is at least 1 unless
+     *		<i>len</i> is 0.
+     */
+    public int drain(int[] dst, int off, int len) {
+	return drain(dst, off, len, true);
+    }
+
+    /**
+     * Remove as many items as are available, up to <i>len</i>, into
+     * <i>dst</i> starting at <i>off</i>, without waiting.
+     *
+     * @param	dst	the array in which to store the items.
+     * @param	off	the index at which to store the first item.
+     * @param	len	the maximum number of items to remove.
+     * @return	the number of items removed, which is 0 if the channel was
+     *		empty.
+     */
+    public int tryDrain(int[] dst, int off, int len) {
+	return drain(dst, off, len, false);
+    }
+
+    private int drain(int[] dst, int off, int len, boolean block) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= dst.length);
+
+	if (len == 0)
+	    return 0;
+
+	lock.acquire();
+
+	int amount = 0;
+	if (awaitItems(block)) {
+	    while (amount < len && count > 0) {
+		int n = Math.min(len - amount, contiguousItems());
+		System.arraycopy(items, head, dst, off + amount, n);
+		amount += n;
+		removed(n);
+	    }
+	}
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Test that this module is working, with several producers and
+     * consumers sharing one small channel.
+     */
+    public static void selfTest() {
+	final BoundedIntChannel channel = new BoundedIntChannel(5);
+	final int perThread = 200;
+	final int numThreads = 3;
+	final long[] sums = new long[numThreads];
+
+	KThread[] threads = new KThread[2*numThreads];
+	for (int t=0; t<numThreads; t++) {
+	    threads[t] = new KThread(new Runnable() {
+		    public void run() {
+			int[] batch = new int[8];
+			for (int i=0; i<perThread; i+=batch.length) {
+			    int n = Math.min(batch.length, perThread-i);
+			    for (int j=0; j<n; j++)
+				batch[j] = i+j;
+			    channel.put(batch, 0, n);
+			}
+		    }
+		});
+	    threads[t].setName("producer" + t).fork();
+	}
+	for (int t=0; t<numThreads; t++) {
+	    final int id = t;
+	    threads[numThreads+t] = new KThread(new Runnable() {
+		    public void run() {
+			int[] batch = new int[3];
+			for (int i=0; i<perThread; ) {
+			    int n = channel.drain(batch, 0,
+						  Math.min(batch.length, perThread-i));
+			    for (int j=0; j<n; j++)
+				sums[id] += batch[j];
+			    i += n;
+			}
+		    }
+		});
+	    threads[numThreads+t].setName("consumer" + t).fork();
+	}
+
+	for (int t=0; t<threads.length; t++)
+	    threads[t].join();
+
+	long total = 0;
+	for (int t=0; t<numThreads; t++)
+	    total += sums[t];
+	Lib.assertTrue(total == (long) numThreads * perThread*(perThread-1)/2);
+	Lib.assertTrue(channel.size() == 0);
+    }
+
+    private int[] items;
+}
@@ -8,12 +8,25 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Besides single words, a speaker can hand over a whole batch of words in one
+ * rendezvous with <tt>speak(int[], int, int)</tt>, and a listener can take up
+ * to a whole batch with <tt>listen(int[], int, int)</tt>. Words are copied
+ * straight from the speaker's array to the listener's, so a batch of any size
+ * costs one rendezvous instead of one per word. Batches are never interleaved:
+ * the words of one speaker are received in order, before any words of the
+ * next speaker.
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
     public Communicator() {
+	lock = new Lock();
+	slotFree = new Condition2(lock);
+	slotFull = new Condition2(lock);
+	slotTaken = new Condition2(lock);
     }
 
     /**
@@ -27,6 +40,41 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	lock.acquire();
+
+	waitForSlot();
+	singleWord[0] = word;
+	fillSlot(singleWord, 0, 1);
+
+	lock.release();
+    }
+
+    /**
+     * Wait for threads to listen through this communicator, and then transfer
+     * <i>len</i> words from <i>words</i>, starting at <i>off</i>, to them.
+     *
+     * <p>
+     * Does not return until every word has been received. The words may be
+     * split among several listeners if they ask for fewer words than are
+     * offered, but they are received in order. <i>words</i> must not be
+     * changed until this method returns.
+     *
+     * @param	words	the array holding the words to transfer.
+     * @param	off	the index of the first word to transfer.
+     * @param	len	the number of words to transfer.
+     */
+    public void speak(int[] words, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+	if (len == 0)
+	    return;
+
+	lock.acquire();
+
+	waitForSlot();
+	fillSlot(words, off, len);
+
+	lock.release();
     }
 
     /**
@@ -34,8 +82,140 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
-	return 0;
+	lock.acquire();
+
+	while (buffer == null || position == end)
+	    slotFull.sleep();
+
+	int word = buffer[position];
+	take(1);
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Wait for a thread to speak through this communicator, and then receive
+     * as many of its words as are offered, up to <i>len</i>, into <i>dst</i>
+     * starting at <i>off</i>.
+     *
+     * @param	dst	the array in which to store the words received.
+     * @param	off	the index at which to store the first word.
+     * @param	len	the maximum number of words to receive.
+     * @return	the number of words received, which is at least 1 unless
+     *		<i>len</i> is 0.
+     */
+    public int listen(int[] dst, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= dst.length);
+
+	if (len == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (buffer == null || position == end)
+	    slotFull.sleep();
+
+	int amount = Math.min(len, end - position);
+	System.arraycopy(buffer, position, dst, off, amount);
+	take(amount);
+
+	lock.release();
+	return amount;
     }
+
+    /**
+     * Wait until no other speaker is offering words. The current thread must
+     * hold the lock.
+     */
+    private void waitForSlot() {
+	while (buffer != null)
+	    slotFree.sleep();
+    }
+
+    /**
+     * Offer words to listeners and wait until all of them have been taken.
+     * The current thread must hold the lock, and the slot must be free.
+     */
+    private void fillSlot(int[] words, int off, int len) {
+	buffer = words;
+	position = off;
+	end = off + len;
+
+	if (len == 1)
+	    slotFull.wake();
+	else
+	    slotFull.wakeAll();
+
+	while (position != end)
+	    slotTaken.sleep();
+
+	buffer = null;
+	slotFree.wake();
+    }
+
+    /**
+     * Consume words from the slot, and wake its speaker once they have all
+     * been taken. Only the speaker frees the slot, so that no other speaker
+     * can fill it before the speaker has seen its words taken. The current
+     * thread must hold the lock.
+     */
+    private void take(int amount) {
+	position += amount;
+
+	if (position == end) {
+	    slotTaken.wake();
+	}
+	else {
+	    slotFull.wake();
+	}
+    }
+
+    /**
+     * Tests whether this module is working.
+     */
+    public static void selfTest() {
+	final Communicator comm = new Communicator();
+	final int count = 100;
+
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<count; i++)
+			comm.speak(i);
+
+		    int[] batch = new int[count];
+		    for (int i=0; i<count; i++)
+			batch[i] = count + i;
+		    comm.speak(batch, 0, count);
+		}
+	    });
+	speaker.setName("speaker").fork();
+
+	for (int i=0; i<count; i++)
+	    Lib.assertTrue(comm.listen() == i);
+
+	int[] received = new int[count];
+	for (int n=0; n<count; )
+	    n += comm.listen(received, n, Math.min(7, count-n));
+	for (int i=0; i<count; i++)
+	    Lib.assertTrue(received[i] == count + i);
+
+	speaker.join();
+    }
+
+    private Lock lock;
+    private Condition2 slotFree;	// woken when a speaker may fill the slot
+    private Condition2 slotFull;	// woken when there are words to take
+    private Condition2 slotTaken;	// woken when the slot has been emptied
+
+    /**
+     * The words on offer, or <tt>null</tt> if the slot is free. Words
+     * <i>position</i> up to <i>end</i> have not been taken yet.
+     */
+    private int[] buffer = null;
+    private int position, end;
+
+    private int[] singleWord = new int[1];
 }
@@ -2,10 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables built upon <tt>KThread.park()</tt>,
+ * which works like a private binary semaphore for each thread.
  *
  * <p>
  * A condition variable is a synchronization primitive that does not have
@@ -60,8 +59,6 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-
-	waitQueue = new LinkedList<Semaphore>();
     }
 
     /**
@@ -71,22 +68,86 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Each waiting thread is linked into this condition variable's wait list
+     * through the thread itself, and waits in <tt>KThread.park()</tt>. The
+     * waker will <tt>unpark()</tt> it, which is remembered if the sleeper has
+     * not parked yet, so there is no chance the sleeper will miss the
+     * wake-up, even though the lock is released before calling
+     * <tt>park()</tt>. Nothing is allocated per wait.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	waitQueue.add(KThread.currentThread());
 
 	conditionLock.release();
-	waiter.P();
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread.park();
+	Machine.interrupt().restore(intStatus);
+
 	conditionLock.acquire();	
     }
 
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it, or until <i>ticks</i> ticks have
+     * passed. The current thread must hold the associated lock, and will
+     * reacquire it before <tt>sleep()</tt> returns either way.
+     *
+     * @param	ticks	the maximum number of ticks to sleep. If not
+     *			positive, only release and reacquire the lock.
+     * @return	<tt>true</tt> if the thread was woken, or <tt>false</tt> if the
+     *		sleep timed out.
+     */
+    public boolean sleep(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (ticks <= 0) {
+	    conditionLock.release();
+	    conditionLock.acquire();
+	    return false;
+	}
+
+	// join the wait list and arm the timeout before releasing the lock, so
+	// that a wake() right after the release finds this thread
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitQueue.add(KThread.currentThread());
+	Alarm.WaitingThread timeout =
+	    ThreadedKernel.alarm.setTimeout(ticks, timeoutHandler());
+
+	conditionLock.release();
+
+	KThread.park();
+	boolean woken = !ThreadedKernel.alarm.cancelTimeout(timeout);
+
+	Machine.interrupt().restore(intStatus);
+
+	conditionLock.acquire();
+	return woken;
+    }
+
+    /**
+     * Return the object through which the alarm ends timed sleeps on this
+     * condition variable, allocating it the first time it is needed.
+     */
+    private Alarm.TimedWaitQueue timeoutHandler() {
+	if (timeoutHandler == null) {
+	    timeoutHandler = new Alarm.TimedWaitQueue() {
+		    public boolean timeout(KThread thread) {
+			if (!waitQueue.remove(thread))
+			    return false;
+
+			thread.unpark();
+			return true;
+		    }
+		};
+	}
+
+	return timeoutHandler;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -94,8 +155,11 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	if (!waitQueue.isEmpty()) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    waitQueue.removeFirst().unpark();
+	    Machine.interrupt().restore(intStatus);
+	}
     }
 
     /**
@@ -110,5 +174,6 @@ public class Condition {
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private WaitList waitQueue = new WaitList();
+    private Alarm.TimedWaitQueue timeoutHandler = null;
 }
@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
@@ -36,14 +34,73 @@ public class Condition2 {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 	boolean intStatus = Machine.interrupt().disable();
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
 	conditionLock.release();
 
 	// block current thread by adding to wait list then sleeping it
-	waitQueue.waitForAccess(KThread.currentThread());
-	KThread.sleep();
+	waitQueue.add(KThread.currentThread());
+	KThread.park();
+
+	if (site != null)
+	    site.acquired(true, Machine.timer().getTime() - startTime);
+
+	conditionLock.acquire();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it, or until <i>ticks</i> ticks have
+     * passed. The current thread must hold the associated lock, and will
+     * reacquire it before <tt>sleep()</tt> returns either way.
+     *
+     * @param	ticks	the maximum number of ticks to sleep. If not
+     *			positive, only release and reacquire the lock.
+     * @return	<tt>true</tt> if the thread was woken, or <tt>false</tt> if the
+     *		sleep timed out.
+     */
+    public boolean sleep(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
+	boolean woken = false;
+	conditionLock.release();
+
+	if (ticks > 0) {
+	    waitQueue.add(KThread.currentThread());
+	    Alarm.WaitingThread timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, timeoutHandler());
+	    KThread.park();
+	    woken = !ThreadedKernel.alarm.cancelTimeout(timeout);
+
+	    if (site != null)
+		site.acquired(true, Machine.timer().getTime() - startTime);
+	}
 
 	conditionLock.acquire();
 	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    /**
+     * Return the object through which the alarm ends timed sleeps on this
+     * condition variable, allocating it the first time it is needed.
+     */
+    private Alarm.TimedWaitQueue timeoutHandler() {
+	if (timeoutHandler == null) {
+	    timeoutHandler = new Alarm.TimedWaitQueue() {
+		    public boolean timeout(KThread thread) {
+			if (!waitQueue.remove(thread))
+			    return false;
+
+			thread.unpark();
+			return true;
+		    }
+		};
+	}
+
+	return timeoutHandler;
     }
 
     /**
@@ -56,11 +113,12 @@ public class Condition2 {
 	boolean intStatus = Machine.interrupt().disable();
 
 	// wake next thread in wait list
-	KThread threadToWake = waitQueue.nextThread();
+	KThread threadToWake = pickNextThread();
 	if(threadToWake != null)
 	{
-	  threadToWake.ready();
-	}// while
+	  waitQueue.remove(threadToWake);
+	  threadToWake.unpark();
+	}// if
 
 	Machine.interrupt().restore(intStatus);
     }
@@ -75,18 +133,44 @@ public class Condition2 {
 	boolean intStatus = Machine.interrupt().disable();
 
 	// iterate through wait queue and wake all sleeping threads
-	for(KThread threadToWake = waitQueue.nextThread();
+	for(KThread threadToWake = waitQueue.removeFirst();
 	    threadToWake != null;
-	    threadToWake = waitQueue.nextThread())
+	    threadToWake = waitQueue.removeFirst())
 	{
-	  threadToWake.ready();
-	}// if
+	  threadToWake.unpark();
+	}// for
 
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Choose the thread <tt>wake()</tt> should wake: the one the scheduler
+     * would put first, as decided by <tt>Scheduler.precedes()</tt>, and
+     * among equals, the one that has waited longest. This is the choice a
+     * scheduler queue that does not transfer priority would make, without
+     * the allocation of going through one. Must be called with interrupts
+     * disabled.
+     *
+     * @return	the thread to wake, or <tt>null</tt> if none are waiting.
+     */
+    private KThread pickNextThread() {
+	KThread best = waitQueue.first();
+	if (best == null)
+	    return null;
+
+	for (KThread thread = best.waitNext; thread != null;
+	     thread = thread.waitNext) {
+	    if (ThreadedKernel.scheduler.precedes(thread, best))
+		best = thread;
+	}
+
+	return best;
+    }
+
     private Lock conditionLock;
+    private LockProfiler.Site site = LockProfiler.register(this);
+    private Alarm.TimedWaitQueue timeoutHandler = null;
 
-  // wait list that uses the system's scheduling philosophy
-  private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+  // threads sleeping on this condition, linked through the threads themselves
+  private WaitList waitQueue = new WaitList();
 }
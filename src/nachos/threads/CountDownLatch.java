@@ -0,0 +1,157 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a number of events have
+ * happened:
+ *
+ * <ul>
+ * <li><tt>countDown()</tt>: record that one event has happened. When the
+ * count reaches zero, every waiting thread is woken.
+ * <li><tt>await()</tt>: wait until the count reaches zero.
+ * </ul>
+ *
+ * <p>
+ * A latch opens once and stays open; use a <tt>Barrier</tt> or a
+ * <tt>Phaser</tt> to wait repeatedly. Since the count only goes down, a
+ * woken thread knows the latch is open, and all waiters are moved to the
+ * ready queue in one pass, without any of them going back to sleep. Waiting
+ * threads are kept in a queue of the current scheduler, so this works with
+ * any <tt>Scheduler</tt>.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of <tt>countDown()</tt> calls needed to open
+     *			the latch.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Decrement the count, waking every waiting thread if it reaches zero.
+     * Does nothing if the latch is already open.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    for (KThread thread = waitQueue.nextThread(); thread != null;
+		 thread = waitQueue.nextThread())
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait until the count reaches zero. Returns immediately if the latch is
+     * already open.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait until the count reaches zero, but give up after <i>ticks</i>
+     * ticks.
+     *
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	<tt>true</tt> if the latch is open, or <tt>false</tt> if the
+     *		wait timed out.
+     */
+    public boolean await(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && ticks > 0) {
+	    Alarm.WaitingThread timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, timeoutHandler());
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	    ThreadedKernel.alarm.cancelTimeout(timeout);
+	}
+
+	boolean open = (count == 0);
+
+	Machine.interrupt().restore(intStatus);
+	return open;
+    }
+
+    /**
+     * Return the object through which the alarm ends timed waits on this
+     * latch, allocating it the first time it is needed.
+     */
+    private Alarm.TimedWaitQueue timeoutHandler() {
+	if (timeoutHandler == null) {
+	    timeoutHandler = new Alarm.TimedWaitQueue() {
+		    public boolean timeout(KThread thread) {
+			if (!waitQueue.remove(thread))
+			    return false;
+
+			thread.ready();
+			return true;
+		    }
+		};
+	}
+
+	return timeoutHandler;
+    }
+
+    /**
+     * Return the number of <tt>countDown()</tt> calls still needed to open
+     * this latch.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(5);
+	final int[] started = new int[1];
+
+	for (int i=0; i<5; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			started[0]++;
+			done.countDown();
+		    }
+		}).setName("latch waiter " + i).fork();
+	}
+
+	KThread.yield();
+	Lib.assertTrue(started[0] == 0);
+	Lib.assertTrue(!done.await(Stats.TimerTicks));
+
+	start.countDown();
+	done.await();
+	Lib.assertTrue(started[0] == 5 && done.getCount() == 0);
+
+	done.countDown();
+	Lib.assertTrue(done.await(1) && done.getCount() == 0);
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private Alarm.TimedWaitQueue timeoutHandler = null;
+}
@@ -0,0 +1,473 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Comparator;
+
+/**
+ * A scheduler that chooses threads by earliest deadline first.
+ *
+ * <p>
+ * Each thread may be given an absolute deadline, in clock ticks, with
+ * <tt>setDeadline()</tt>. The next thread to be dequeued is always the one
+ * with the earliest (effective) deadline; threads with equal deadlines, and
+ * threads that have no deadline at all, are dequeued in the order they began
+ * waiting. Threads without a deadline therefore only run when no thread with
+ * a deadline is ready, and share the processor round-robin among themselves.
+ *
+ * <p>
+ * A thread may also be made periodic with <tt>setPeriod()</tt>, which
+ * reserves <i>budget</i> ticks of every <i>period</i> ticks for it. A
+ * periodic thread is only admitted if the total utilization of all periodic
+ * threads stays at or below 1, which is exactly the condition under which EDF
+ * can meet all their deadlines. A periodic thread calls <tt>nextPeriod()</tt>
+ * when it has finished the work for the current period.
+ *
+ * <p>
+ * Deadlines are inherited through locks and joins, in the same way that a
+ * priority scheduler donates priority: a thread holding a resource that a
+ * thread with an earlier deadline is waiting for runs with that earlier
+ * deadline until it gives the resource up.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if the thread that has
+     *					access should inherit the deadlines of
+     *					the threads waiting on this queue.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(transferPriority);
+    }
+
+    /**
+     * Set the absolute deadline of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to set the deadline of.
+     * @param	absoluteTick	the time by which the thread should complete
+     *				its current job, or <tt>noDeadline</tt>.
+     */
+    public void setDeadline(KThread thread, long absoluteTick) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(absoluteTick >= 0);
+
+	ThreadState state = getThreadState(thread);
+	state.deadline = absoluteTick;
+	state.update();
+    }
+
+    /**
+     * Get the absolute deadline of the specified thread, not counting any
+     * inherited deadlines. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the deadline of.
+     * @return	the thread's deadline, or <tt>noDeadline</tt>.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Get the effective deadline of the specified thread, that is, the
+     * earliest of its own deadline and the deadlines of all threads waiting
+     * for it through a lock or a join. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread to get the effective deadline of.
+     * @return	the thread's effective deadline, or <tt>noDeadline</tt>.
+     */
+    public long getEffectiveDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).effectiveDeadline;
+    }
+
+    /**
+     * Decide whether one waiting thread should be chosen ahead of another:
+     * it should if its effective deadline is earlier. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	a waiting thread.
+     * @param	other	another waiting thread.
+     * @return	<tt>true</tt> if <i>thread</i> has the earlier effective
+     *		deadline.
+     */
+    public boolean precedes(KThread thread, KThread other) {
+	return getEffectiveDeadline(thread) < getEffectiveDeadline(other);
+    }
+
+    /**
+     * Make the specified thread periodic, with a deadline at the end of each
+     * period. The thread's first period starts now. Must be called with
+     * interrupts disabled.
+     *
+     * <p>
+     * The thread is only admitted if the total utilization of all periodic
+     * threads, <i>sum(budget/period)</i>, would not exceed 1. A period of 0
+     * makes the thread aperiodic again and releases its reservation.
+     *
+     * @param	thread	the thread to make periodic.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the worst-case number of ticks the thread runs per
+     *			period.
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    public boolean setPeriod(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(period >= 0 && budget >= 0 && budget <= period);
+
+	ThreadState state = getThreadState(thread);
+
+	double oldUtilization = state.utilization();
+	double newUtilization = (period == 0) ? 0.0 : (double) budget / period;
+
+	if (totalUtilization - oldUtilization + newUtilization > 1.0) {
+	    Lib.debug(dbgEDF, "Rejecting " + thread + ": utilization "
+		      + totalUtilization + " + " + newUtilization);
+	    return false;
+	}
+
+	totalUtilization += newUtilization - oldUtilization;
+
+	state.period = period;
+	state.budget = budget;
+	if (period != 0) {
+	    state.release = Machine.timer().getTime();
+	    state.deadline = state.release + period;
+	}
+	else {
+	    state.deadline = noDeadline;
+	}
+	state.update();
+
+	return true;
+    }
+
+    /**
+     * Get the total utilization reserved by all admitted periodic threads.
+     *
+     * @return	the sum of <i>budget/period</i> over all periodic threads.
+     */
+    public double getUtilization() {
+	return totalUtilization;
+    }
+
+    /**
+     * Signal that the current thread has finished its current job. The job's
+     * completion is counted against its deadline. An aperiodic thread loses
+     * its deadline; a periodic thread moves on to its next period.
+     */
+    public void jobComplete() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	recordCompletion(state);
+
+	if (state.period != 0) {
+	    state.release += state.period;
+	    state.deadline = state.release + state.period;
+	}
+	else {
+	    state.deadline = noDeadline;
+	}
+	state.update();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Finish the current period of the current thread and wait until its
+     * next period starts. The current thread must be periodic.
+     */
+    public void nextPeriod() {
+	ThreadState state = getThreadState(KThread.currentThread());
+	Lib.assertTrue(state.period != 0);
+
+	jobComplete();
+
+	long wait = state.release - Machine.timer().getTime();
+	if (wait > 0)
+	    ThreadedKernel.alarm.waitUntil(wait);
+    }
+
+    private void recordCompletion(ThreadState state) {
+	if (state.deadline == noDeadline)
+	    return;
+
+	long lateness = Machine.timer().getTime() - state.deadline;
+	if (lateness > 0) {
+	    deadlinesMissed++;
+	    if (lateness > maxLateness)
+		maxLateness = lateness;
+
+	    Lib.debug(dbgEDF, state.thread + " missed its deadline by "
+		      + lateness + " ticks");
+	}
+	else {
+	    deadlinesMet++;
+	}
+    }
+
+    /**
+     * Print the deadline statistics of this scheduler.
+     */
+    public void printStats() {
+	System.out.println("EDF: deadlines met " + deadlinesMet
+			   + ", missed " + deadlinesMissed
+			   + ", max lateness " + maxLateness
+			   + ", utilization " + totalUtilization);
+    }
+
+    /** The deadline of a thread that has none. */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a heap ordered
+     * by effective deadline.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.arrival = numArrivals++;
+	    state.waitingOn = this;
+	    waitQueue.add(state);
+
+	    if (transferPriority)
+		updateHolders();
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null) {
+		ThreadState oldHolder = holder;
+		holder = null;
+		oldHolder.acquired.remove(this);
+		oldHolder.update();
+	    }
+
+	    ThreadState state = waitQueue.poll();
+	    if (state == null)
+		return null;
+
+	    state.waitingOn = null;
+	    acquire(state.thread);
+
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!transferPriority)
+		return;
+
+	    holder = getThreadState(thread);
+	    holder.acquired.add(this);
+	    holder.update();
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    waitQueue.remove(state);
+	    state.waitingOn = null;
+
+	    if (transferPriority)
+		updateHolders();
+
+	    return true;
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!transferPriority)
+		return;
+
+	    ThreadState state = getThreadState(thread);
+	    sharers.add(state);
+	    state.acquired.add(this);
+	    state.update();
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state == holder)
+		holder = null;
+	    else if (!sharers.remove(state))
+		return;
+
+	    state.acquired.remove(this);
+	    state.update();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : waitQueue)
+		System.out.print(state.thread + "@" + state.effectiveDeadline
+				 + " ");
+	}
+
+	/**
+	 * Return the earliest effective deadline of any waiting thread.
+	 */
+	long earliestDeadline() {
+	    ThreadState first = waitQueue.peek();
+	    return (first == null) ? noDeadline : first.effectiveDeadline;
+	}
+
+	/**
+	 * Reposition a waiting thread whose effective deadline has changed.
+	 */
+	void reposition(ThreadState state) {
+	    waitQueue.remove(state);
+	    waitQueue.add(state);
+
+	    if (transferPriority)
+		updateHolders();
+	}
+
+	/**
+	 * Pass a change in the earliest waiting deadline on to every thread
+	 * with access.
+	 */
+	private void updateHolders() {
+	    if (holder != null)
+		holder.update();
+	    for (ThreadState state : sharers)
+		state.update();
+	}
+
+	/**
+	 * <tt>true</tt> if the thread with access to this queue inherits the
+	 * deadlines of the threads waiting on it.
+	 */
+	public boolean transferPriority;
+
+	private ThreadState holder = null;
+	private LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
+	private PriorityQueue<ThreadState> waitQueue =
+	    new PriorityQueue<ThreadState>(11, deadlineOrder);
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline and period, the
+     * deadline it has inherited, the queues it holds, and the queue it is
+     * waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Recompute the effective deadline of the associated thread, and if it
+	 * changed, pass the change on to the queue it is waiting on.
+	 */
+	void update() {
+	    long newDeadline = deadline;
+	    for (DeadlineQueue queue : acquired)
+		newDeadline = Math.min(newDeadline, queue.earliestDeadline());
+
+	    if (newDeadline == effectiveDeadline)
+		return;
+
+	    effectiveDeadline = newDeadline;
+	    if (waitingOn != null)
+		waitingOn.reposition(this);
+	}
+
+	double utilization() {
+	    return (period == 0) ? 0.0 : (double) budget / period;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The absolute deadline of the associated thread's current job. */
+	protected long deadline = noDeadline;
+	/** The deadline after inheritance through locks and joins. */
+	protected long effectiveDeadline = noDeadline;
+	/** The period, or 0 for an aperiodic thread. */
+	protected long period = 0;
+	/** The reserved ticks per period. */
+	protected long budget = 0;
+	/** The start of the current period. */
+	protected long release = 0;
+
+	private long arrival;
+	private DeadlineQueue waitingOn = null;
+	private LinkedList<DeadlineQueue> acquired =
+	    new LinkedList<DeadlineQueue>();
+    }
+
+    private static final Comparator<ThreadState> deadlineOrder =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.effectiveDeadline != b.effectiveDeadline)
+		    return (a.effectiveDeadline < b.effectiveDeadline) ? -1 : 1;
+		else if (a.arrival != b.arrival)
+		    return (a.arrival < b.arrival) ? -1 : 1;
+		else
+		    return 0;
+	    }
+	};
+
+    private long numArrivals = 0;
+    private double totalUtilization = 0.0;
+
+    private int deadlinesMet = 0;
+    private int deadlinesMissed = 0;
+    private long maxLateness = 0;
+
+    private static final char dbgEDF = 'e';
+}
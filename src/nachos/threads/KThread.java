@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.List;
-import java.util.LinkedList;
-
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -50,7 +47,7 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
@@ -117,6 +114,26 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the numerical ID of this thread.
+     *
+     * @return	the unique ID of this thread.
+     */
+    int getID() {
+	return id;
+    }
+
+    /**
+     * Test if this thread is ready or running, rather than new, blocked or
+     * finished.
+     *
+     * @return	<tt>true</tt> if this thread can make progress without being
+     *		woken.
+     */
+    boolean isRunnable() {
+	return (status == statusReady || status == statusRunning);
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -196,12 +213,16 @@ public class KThread {
 
 	currentThread.status = statusFinished;
 
-	// notify any threads blocked by this one that this thread is finished
-	List<KThread> bThreads = currentThread.getBlockedThreads();
-	while(!bThreads.isEmpty())
-	{
-	  bThreads.remove(0).ready();
-	}// while
+	currentThread.recordFinish();
+
+	// wake every thread that joined this one, in one pass
+	if (currentThread.joiners != null) {
+	    for (KThread thread = currentThread.joiners.removeFirst();
+		 thread != null; thread = currentThread.joiners.removeFirst())
+		thread.unpark();
+
+	    currentThread.joiners = null;
+	}
 
 	sleep();
     }
@@ -223,7 +244,9 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread,
+		      "Yielding thread: " + currentThread.toString());
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
@@ -236,6 +259,28 @@ public class KThread {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Preempt the current thread because its time slice has run out: count
+     * the preemption and yield. Called by the timer interrupt handler, which
+     * switches threads from inside the handler, as Nachos always has.
+     */
+    public static void preempt() {
+	currentThread.numPreemptions++;
+	numPreemptionsTotal++;
+
+	KThread.yield();
+    }
+
+    /**
+     * Return the number of ticks the current thread has been running since it
+     * was last dispatched.
+     *
+     * @return	the length of the current time slice so far.
+     */
+    public static long currentSliceTicks() {
+	return Machine.timer().getTime() - currentThread.sliceStart;
+    }
+
     /**
      * Relinquish the CPU, because the current thread has either finished or it
      * is blocked. This thread must be the current thread.
@@ -248,27 +293,83 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread,
+		      "Sleeping thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
 	if (currentThread.status != statusFinished)
 	    currentThread.status = statusBlocked;
 
+	if (SchedTrace.enabled) {
+	    SchedTrace.record(currentThread.status == statusFinished ?
+			      SchedTrace.reasonFinish : SchedTrace.reasonSleep,
+			      currentThread, null, currentThread.id, -1);
+	}
+
 	runNextThread();
     }
 
+    /**
+     * Block the current thread until another thread calls <tt>unpark()</tt>
+     * on it. If <tt>unpark()</tt> was already called since the last
+     * <tt>park()</tt>, return immediately instead. Must be called with
+     * interrupts disabled.
+     *
+     * <p>
+     * Unlike sleeping on a <tt>Semaphore</tt>, this does not go through a
+     * scheduler <tt>ThreadQueue</tt>, so it allocates nothing. It is meant for
+     * synchronization primitives that keep their own lists of waiting threads
+     * (see <tt>WaitList</tt>).
+     */
+    static void park() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (currentThread.unparked) {
+	    currentThread.unparked = false;
+	    return;
+	}
+
+	currentThread.parked = true;
+	sleep();
+    }
+
+    /**
+     * Wake this thread from <tt>park()</tt>, or, if it is not parked yet,
+     * make its next <tt>park()</tt> return immediately. Must be called with
+     * interrupts disabled.
+     */
+    void unpark() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (parked) {
+	    parked = false;
+	    ready();
+	}
+	else {
+	    unparked = true;
+	}
+    }
+
     /**
      * Moves this thread to the ready state and adds this to the scheduler's
      * ready queue.
      */
     public void ready() {
-	Lib.debug(dbgThread, "Ready thread: " + toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Ready thread: " + toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
+	readySince = Machine.timer().getTime();
+
+	if (SchedTrace.enabled) {
+	    SchedTrace.record(SchedTrace.reasonReady, currentThread, this,
+			      currentThread.id, id);
+	}
 	if (this != idleThread)
 	    readyQueue.waitForAccess(this);
 	
@@ -277,30 +378,74 @@ public class KThread {
 
     /**
      * Waits for this thread to finish. If this thread is already finished,
-     * return immediately. This method must only be called once; the second
-     * call is not guaranteed to return. This thread must not be the current
-     * thread.
+     * return immediately. Any number of threads may join the same thread;
+     * they are all woken together when it finishes. This thread must not be
+     * the current thread.
      */
     public void join() {
 	Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 	Lib.assertTrue(this != currentThread);
 
-	// If this thread is already finished, return immediately.
-	if(this.status == KThread.statusFinished)
-	{
-	  return;
-	} 
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (status != statusFinished) {
+	    addJoiner(currentThread);
+	    park();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Waits at most <i>ticks</i> ticks for this thread to finish. This thread
+     * must not be the current thread.
+     *
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	<tt>true</tt> if this thread has finished, or <tt>false</tt>
+     *		if the wait timed out first.
+     */
+    public boolean join(long ticks) {
+	Lib.debug(dbgThread, "Joining to thread: " + toString());
 
-	// add the thread that this thread is blocking to the list
-	this.blockedThreads.add(KThread.currentThread());
+	Lib.assertTrue(this != currentThread);
 
-	//sleep the calling thread
 	boolean intStatus = Machine.interrupt().disable();
-	KThread.sleep(); 
+
+	if (status != statusFinished && ticks > 0) {
+	    addJoiner(currentThread);
+
+	    Alarm.WaitingThread timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, new Alarm.TimedWaitQueue() {
+			public boolean timeout(KThread thread) {
+			    if (joiners == null || !joiners.remove(thread))
+				return false;
+
+			    thread.unpark();
+			    return true;
+			}
+		    });
+	    park();
+	    ThreadedKernel.alarm.cancelTimeout(timeout);
+	}
+
+	boolean finished = (status == statusFinished);
+
 	Machine.interrupt().restore(intStatus);
+	return finished;
     }
 
+    /**
+     * Add a thread to the threads waiting for this one to finish, creating
+     * the list the first time it is needed. Must be called with interrupts
+     * disabled.
+     */
+    private void addJoiner(KThread thread) {
+	if (joiners == null)
+	    joiners = new WaitList();
+
+	joiners.add(thread);
+    }
 
     /**
      * Create the idle thread. Whenever there are no threads ready to be run,
@@ -361,10 +506,17 @@ public class KThread {
 
 	Machine.yield();
 
+	if (SchedTrace.enabled) {
+	    SchedTrace.record(SchedTrace.reasonSwitch, currentThread, this,
+			      currentThread.id, id);
+	}
+
 	currentThread.saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-		  + " to: " + toString());
+	if (Lib.test(dbgThread)) {
+	    Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+		      + " to: " + toString());
+	}
 
 	currentThread = this;
 
@@ -378,7 +530,9 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread,
+		      "Running thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -386,6 +540,15 @@ public class KThread {
 
 	Machine.autoGrader().runningThread(this);
 	
+	if (status == statusReady) {
+	    long waited = Machine.timer().getTime() - readySince;
+	    readyTicks += waited;
+	    if (waited > maxReadyWait)
+		maxReadyWait = waited;
+	}
+	sliceStart = Machine.timer().getTime();
+	numDispatches++;
+
 	status = statusRunning;
 
 	if (toBeDestroyed != null) {
@@ -402,17 +565,83 @@ public class KThread {
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
+
+	runTicks += Machine.timer().getTime() - sliceStart;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent running, not counting
+     * the current time slice.
+     *
+     * @return	the total CPU time of this thread.
+     */
+    public long getRunTicks() {
+	return runTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent on the ready queue
+     * waiting for the CPU.
+     *
+     * @return	the total ready-queue wait of this thread.
+     */
+    public long getReadyTicks() {
+	return readyTicks;
+    }
+
+    /**
+     * Return the longest single wait this thread has had on the ready queue.
+     *
+     * @return	the maximum ready-queue wait of this thread, in ticks.
+     */
+    public long getMaxReadyWait() {
+	return maxReadyWait;
+    }
+
+    /**
+     * Return the number of times this thread was preempted by the timer.
+     *
+     * @return	the number of preemptions of this thread.
+     */
+    public int getNumPreemptions() {
+	return numPreemptions;
+    }
+
+    /**
+     * Fold this thread's scheduling metrics into the kernel-wide totals.
+     * Called by the thread itself from <tt>finish()</tt>.
+     */
+    private void recordFinish() {
+	runTicks += Machine.timer().getTime() - sliceStart;
+	sliceStart = Machine.timer().getTime();
+
+	Lib.debug(dbgThread, "Thread " + toString() + " ran " + runTicks
+		  + " ticks, waited " + readyTicks + " ticks (max "
+		  + maxReadyWait + ") over " + numDispatches
+		  + " dispatches, preempted " + numPreemptions + " times");
+
+	numFinished++;
+	sumRunTicks += runTicks;
+	sumSqRunTicks += (double) runTicks * runTicks;
+	if (maxReadyWait > maxReadyWaitTotal)
+	    maxReadyWaitTotal = maxReadyWait;
+    }
+
+    /**
+     * Print the kernel-wide scheduling fairness metrics. The fairness index
+     * is Jain's index over the CPU time of all finished threads: 1.0 when
+     * every thread got the same share, approaching <i>1/n</i> as one thread
+     * takes everything.
+     */
+    public static void printStats() {
+	double fairness = (sumSqRunTicks == 0) ? 1.0 :
+	    ((double) sumRunTicks * sumRunTicks) / (numFinished * sumSqRunTicks);
+
+	System.out.println("Scheduling: threads finished " + numFinished
+			   + ", preemptions " + numPreemptionsTotal
+			   + ", max ready wait " + maxReadyWaitTotal
+			   + ", fairness " + fairness);
     }
-  
-  /**
-   * Get the list of threads that this thread is blocking
-   *
-   * @returns the list of threads being blocked by this one
-   */
-  public List<KThread> getBlockedThreads()
-  {
-    return this.blockedThreads;
-  }// getBlockedThreads
 
     @SuppressWarnings("unused")
 	private static class PingTest implements Runnable {
@@ -549,8 +778,32 @@ public class KThread {
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
 
-  /**
-   * Queue of threads that this thread is blocking.
-   */
-  private List<KThread> blockedThreads = new LinkedList<KThread>();
+    /** The next thread on the <tt>WaitList</tt> this thread is on. */
+    KThread waitNext = null;
+    /** <tt>true</tt> while this thread is blocked in <tt>park()</tt>. */
+    private boolean parked = false;
+    /** <tt>true</tt> if <tt>unpark()</tt> was called before <tt>park()</tt>. */
+    private boolean unparked = false;
+
+    /** Per-thread scheduling metrics, all in ticks except the counts. */
+    private long sliceStart = 0;
+    private long readySince = 0;
+    private long runTicks = 0;
+    private long readyTicks = 0;
+    private long maxReadyWait = 0;
+    private int numDispatches = 0;
+    private int numPreemptions = 0;
+
+    /** Kernel-wide totals, accumulated as threads finish. */
+    private static int numFinished = 0;
+    private static int numPreemptionsTotal = 0;
+    private static long sumRunTicks = 0;
+    private static double sumSqRunTicks = 0;
+    private static long maxReadyWaitTotal = 0;
+
+    /**
+     * The threads waiting in <tt>join()</tt> for this thread to finish, or
+     * <tt>null</tt> if no thread has joined it yet.
+     */
+    private WaitList joiners = null;
 }
@@ -0,0 +1,508 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed set of worker threads that run submitted tasks, so that a parallel
+ * job does not need to fork a new <tt>KThread</tt> for every piece of work.
+ *
+ * <p>
+ * Forking a <tt>KThread</tt> creates a TCB and starts a Java thread, and
+ * joining it later tears both down. Submitting a task to a pool only appends
+ * it to a deque; one of the already running workers picks it up.
+ *
+ * <p>
+ * Each worker has its own deque of tasks. A task submitted by a worker,
+ * typically a subtask of the task it is running, goes on the back of that
+ * worker's deque, and the worker takes tasks from the back, so recursive work
+ * is done depth first. A worker whose deque is empty <i>steals</i> the task
+ * at the front of another worker's deque, which is the oldest and so usually
+ * the largest piece of work there. Tasks submitted by other threads are
+ * spread over the workers' deques in turn. Workers with nothing to run or
+ * steal sleep until a task is submitted.
+ *
+ * <p>
+ * <tt>submit()</tt> returns a <tt>Task</tt> that can be joined. A worker that
+ * joins a task which is not done yet runs other tasks while it waits, so
+ * recursive tasks that submit and join subtasks do not tie up the workers.
+ * <tt>parallelFor()</tt> runs a loop body over a range of indices this way.
+ *
+ * <p>
+ * Like the other synchronization classes, the pool protects its deques by
+ * disabling interrupts, which is enough on Nachos's single processor.
+ */
+public class KThreadPool {
+    /**
+     * Allocate a new pool and start its workers.
+     *
+     * @param	numWorkers	the number of worker threads.
+     */
+    public KThreadPool(int numWorkers) {
+	Lib.assertTrue(numWorkers > 0);
+
+	workers = new Worker[numWorkers];
+	for (int i=0; i<numWorkers; i++)
+	    workers[i] = new Worker();
+	for (int i=0; i<numWorkers; i++)
+	    workers[i].thread.setName("pool worker " + i).fork();
+    }
+
+    /**
+     * Submit a task to this pool.
+     *
+     * @param	runnable	the code the task runs.
+     * @return	the task, which can be joined to wait for it to finish.
+     */
+    public Task submit(Runnable runnable) {
+	Lib.assertTrue(runnable != null);
+
+	Task task = new Task(runnable);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!shutdown);
+
+	Worker worker = currentWorker();
+	if (worker == null) {
+	    worker = workers[nextWorker];
+	    nextWorker = (nextWorker + 1) % workers.length;
+	}
+	worker.deque.addLast(task);
+	numSubmitted++;
+
+	KThread thread = idle.removeFirst();
+	if (thread != null)
+	    thread.unpark();
+
+	Machine.interrupt().restore(intStatus);
+
+	return task;
+    }
+
+    /**
+     * Run <tt>body.run(i)</tt> for every <i>i</i> from <i>from</i> up to but
+     * not including <i>to</i>, using the workers of this pool, and return when
+     * all of them are done. The range is split into a few chunks per worker,
+     * and each chunk is run as one task.
+     *
+     * @param	from	the first index.
+     * @param	to	one past the last index.
+     * @param	body	the loop body.
+     */
+    public void parallelFor(int from, int to, final LoopBody body) {
+	if (from >= to)
+	    return;
+
+	int numChunks = Math.min(to - from, chunksPerWorker * workers.length);
+	Task[] tasks = new Task[numChunks];
+
+	for (int i=0; i<numChunks; i++) {
+	    final int start = from + (int) ((long) (to-from) * i / numChunks);
+	    final int end = from + (int) ((long) (to-from) * (i+1) / numChunks);
+
+	    tasks[i] = submit(new Runnable() {
+		    public void run() {
+			for (int j=start; j<end; j++)
+			    body.run(j);
+		    }
+		});
+	}
+
+	for (int i=0; i<numChunks; i++)
+	    tasks[i].join();
+    }
+
+    /**
+     * Wait for every submitted task to finish, and then stop the workers.
+     * No tasks may be submitted afterwards. Must not be called by a worker.
+     */
+    public void shutdown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(currentWorker() == null);
+
+	shutdown = true;
+	for (KThread thread = idle.removeFirst(); thread != null;
+	     thread = idle.removeFirst())
+	    thread.unpark();
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<workers.length; i++)
+	    workers[i].thread.join();
+    }
+
+    /**
+     * Return the number of tasks submitted to this pool.
+     *
+     * @return	the number of tasks submitted.
+     */
+    public long getSubmitted() {
+	return numSubmitted;
+    }
+
+    /**
+     * Return the number of tasks a worker took from another worker's deque.
+     *
+     * @return	the number of tasks stolen.
+     */
+    public long getStolen() {
+	return numStolen;
+    }
+
+    /**
+     * Return the worker the current thread is, if it is a worker of this
+     * pool.
+     */
+    private Worker currentWorker() {
+	KThread thread = KThread.currentThread();
+	for (int i=0; i<workers.length; i++) {
+	    if (workers[i].thread == thread)
+		return workers[i];
+	}
+	return null;
+    }
+
+    /**
+     * Find a task for a worker to run: the newest task on its own deque, or
+     * else the oldest task on the deque of the next worker that has one. Must
+     * be called with interrupts disabled.
+     *
+     * @return	the task, or <tt>null</tt> if every deque is empty.
+     */
+    private Task findTask(Worker worker) {
+	Task task = worker.deque.pollLast();
+	if (task != null)
+	    return task;
+
+	for (int i=1; i<workers.length; i++) {
+	    Worker victim = workers[(worker.index + i) % workers.length];
+	    task = victim.deque.pollFirst();
+	    if (task != null) {
+		numStolen++;
+		return task;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * The body of a loop run by <tt>parallelFor()</tt>.
+     */
+    public interface LoopBody {
+	/**
+	 * Run one iteration of the loop.
+	 *
+	 * @param	i	the index of the iteration.
+	 */
+	void run(int i);
+    }
+
+    /**
+     * A task submitted to a pool.
+     */
+    public class Task {
+	private Task(Runnable runnable) {
+	    this.runnable = runnable;
+	}
+
+	/**
+	 * Test if this task has finished running.
+	 *
+	 * @return	<tt>true</tt> if this task is done.
+	 */
+	public boolean isDone() {
+	    return done;
+	}
+
+	/**
+	 * Wait for this task to finish. If the current thread is a worker of
+	 * the pool, it runs other tasks while it waits.
+	 */
+	public void join() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    Worker worker = currentWorker();
+
+	    while (!done) {
+		Task task = (worker == null) ? null : findTask(worker);
+		if (task != null) {
+		    Machine.interrupt().restore(intStatus);
+		    task.run();
+		    Machine.interrupt().disable();
+		}
+		else {
+		    if (joiners == null)
+			joiners = new WaitList();
+		    joiners.add(KThread.currentThread());
+		    KThread.park();
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Run this task and wake the threads joining it. Called by a worker,
+	 * with interrupts enabled.
+	 */
+	private void run() {
+	    runnable.run();
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    done = true;
+	    if (joiners != null) {
+		for (KThread thread = joiners.removeFirst(); thread != null;
+		     thread = joiners.removeFirst())
+		    thread.unpark();
+
+		joiners = null;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	private Runnable runnable;
+	private boolean done = false;
+	private WaitList joiners = null;
+    }
+
+    private class Worker implements Runnable {
+	Worker() {
+	    index = numWorkers++;
+	    thread = new KThread(this);
+	}
+
+	public void run() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    while (true) {
+		Task task = findTask(this);
+		if (task != null) {
+		    Machine.interrupt().enable();
+		    task.run();
+		    Machine.interrupt().disable();
+		}
+		else if (shutdown) {
+		    break;
+		}
+		else {
+		    idle.add(thread);
+		    KThread.park();
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	int index;
+	KThread thread;
+	ArrayDeque<Task> deque = new ArrayDeque<Task>();
+    }
+
+    /**
+     * Test that this module is working: run recursive tasks that submit and
+     * join subtasks, and a parallel loop.
+     */
+    public static void selfTest() {
+	KThreadPool pool = new KThreadPool(4);
+
+	int[] data = new int[1000];
+	for (int i=0; i<data.length; i++)
+	    data[i] = i;
+
+	SumTask sum = new SumTask(pool, data, 0, data.length, 16);
+	pool.submit(sum).join();
+	Lib.assertTrue(sum.sum == (long) data.length*(data.length-1)/2);
+
+	final int[] squares = new int[100];
+	pool.parallelFor(0, squares.length, new LoopBody() {
+		public void run(int i) {
+		    squares[i] = i*i;
+		    if (i % 7 == 0)
+			KThread.yield();
+		}
+	    });
+	for (int i=0; i<squares.length; i++)
+	    Lib.assertTrue(squares[i] == i*i);
+
+	pool.shutdown();
+    }
+
+    /**
+     * Compare a pool with forking a <tt>KThread</tt> per task, on a
+     * recursive sum and a recursive merge sort over <i>size</i> integers that
+     * split their input down to pieces of <i>grain</i> integers. Print the
+     * simulated ticks and host nanoseconds each run took.
+     *
+     * @param	numWorkers	the number of workers in the pool.
+     * @param	size		the number of integers.
+     * @param	grain		the size of the pieces that are not split.
+     */
+    public static void benchmark(int numWorkers, int size, int grain) {
+	int[] data = new int[size];
+	for (int i=0; i<size; i++)
+	    data[i] = Lib.random(size);
+
+	KThreadPool pool = new KThreadPool(numWorkers);
+
+	for (int sort=0; sort<2; sort++) {
+	    String name = (sort == 0) ? "sum" : "sort";
+	    long[] ticks = new long[2];
+	    long[] nanos = new long[2];
+
+	    for (int usePool=0; usePool<2; usePool++) {
+		int[] input = data.clone();
+		Runnable job = (sort == 0)
+		    ? (Runnable) new SumTask(usePool == 1 ? pool : null,
+					     input, 0, size, grain)
+		    : (Runnable) new SortTask(usePool == 1 ? pool : null,
+					      input, new int[size], 0, size,
+					      grain);
+
+		long startTicks = Machine.timer().getTime();
+		long startNanos = System.nanoTime();
+		runTask(usePool == 1 ? pool : null, job).join();
+		ticks[usePool] = Machine.timer().getTime() - startTicks;
+		nanos[usePool] = System.nanoTime() - startNanos;
+
+		if (sort == 1) {
+		    for (int i=1; i<size; i++)
+			Lib.assertTrue(input[i-1] <= input[i]);
+		}
+	    }
+
+	    System.out.println("KThreadPool " + name + ", " + size + " ints, "
+			       + (size / grain) + " leaves: KThread per task "
+			       + ticks[0] + " ticks, " + nanos[0] + " ns; pool of "
+			       + numWorkers + ": " + ticks[1] + " ticks, "
+			       + nanos[1] + " ns");
+	}
+
+	System.out.println("KThreadPool: " + pool.getSubmitted()
+			   + " tasks submitted, " + pool.getStolen() + " stolen");
+	pool.shutdown();
+    }
+
+    /**
+     * Start a task of a benchmark, on <i>pool</i> or, if it is <tt>null</tt>,
+     * in a new <tt>KThread</tt>.
+     */
+    private static Joinable runTask(KThreadPool pool, Runnable runnable) {
+	if (pool != null)
+	    return new Joinable(pool.submit(runnable));
+
+	KThread thread = new KThread(runnable);
+	thread.fork();
+	return new Joinable(thread);
+    }
+
+    /**
+     * A pool task or a thread, whichever a benchmark task was run as.
+     */
+    private static class Joinable {
+	Joinable(Task task) {
+	    this.task = task;
+	}
+
+	Joinable(KThread thread) {
+	    this.thread = thread;
+	}
+
+	void join() {
+	    if (task != null)
+		task.join();
+	    else
+		thread.join();
+	}
+
+	private Task task = null;
+	private KThread thread = null;
+    }
+
+    private static class SumTask implements Runnable {
+	SumTask(KThreadPool pool, int[] data, int from, int to, int grain) {
+	    this.pool = pool;
+	    this.data = data;
+	    this.from = from;
+	    this.to = to;
+	    this.grain = grain;
+	}
+
+	public void run() {
+	    if (to - from <= grain) {
+		for (int i=from; i<to; i++)
+		    sum += data[i];
+		return;
+	    }
+
+	    int middle = (from + to) / 2;
+	    SumTask left = new SumTask(pool, data, from, middle, grain);
+	    SumTask right = new SumTask(pool, data, middle, to, grain);
+
+	    Joinable task = runTask(pool, left);
+	    right.run();
+	    task.join();
+
+	    sum = left.sum + right.sum;
+	}
+
+	private KThreadPool pool;
+	private int[] data;
+	private int from, to, grain;
+	long sum = 0;
+    }
+
+    private static class SortTask implements Runnable {
+	SortTask(KThreadPool pool, int[] data, int[] scratch, int from, int to,
+		 int grain) {
+	    this.pool = pool;
+	    this.data = data;
+	    this.scratch = scratch;
+	    this.from = from;
+	    this.to = to;
+	    this.grain = grain;
+	}
+
+	public void run() {
+	    if (to - from <= grain) {
+		java.util.Arrays.sort(data, from, to);
+		return;
+	    }
+
+	    int middle = (from + to) / 2;
+	    Joinable task = runTask(pool, new SortTask(pool, data, scratch,
+						       from, middle, grain));
+	    new SortTask(pool, data, scratch, middle, to, grain).run();
+	    task.join();
+
+	    int i = from, j = middle;
+	    for (int k=from; k<to; k++) {
+		if (j == to || (i < middle && data[i] <= data[j]))
+		    scratch[k] = data[i++];
+		else
+		    scratch[k] = data[j++];
+	    }
+	    System.arraycopy(scratch, from, data, from, to - from);
+	}
+
+	private KThreadPool pool;
+	private int[] data, scratch;
+	private int from, to, grain;
+    }
+
+    private static final int chunksPerWorker = 4;
+
+    private Worker[] workers;
+    private int numWorkers = 0;
+    private int nextWorker = 0;
+    private WaitList idle = new WaitList();
+    private boolean shutdown = false;
+
+    private long numSubmitted = 0;
+    private long numStolen = 0;
+}
@@ -35,8 +35,10 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	boolean contended = (lockHolder != null);
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
 
-	if (lockHolder != null) {
+	if (contended) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
@@ -47,7 +49,72 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (site != null) {
+	    acquireTime = Machine.timer().getTime();
+	    site.acquired(contended, acquireTime - startTime);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock, but give up if that takes more than
+     * <i>ticks</i> ticks. The current thread must not already hold this lock.
+     *
+     * @param	ticks	the maximum number of ticks to wait. If not
+     *			positive, only acquire the lock if it is free.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean contended = (lockHolder != null);
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
+
+	if (!contended) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (ticks > 0) {
+	    Alarm.WaitingThread timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, timeoutHandler());
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+	    ThreadedKernel.alarm.cancelTimeout(timeout);
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	if (site != null && acquired) {
+	    acquireTime = Machine.timer().getTime();
+	    site.acquired(contended, acquireTime - startTime);
+	}
+
 	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Return the object through which the alarm ends timed waits on this
+     * lock, allocating it the first time it is needed.
+     */
+    private Alarm.TimedWaitQueue timeoutHandler() {
+	if (timeoutHandler == null) {
+	    timeoutHandler = new Alarm.TimedWaitQueue() {
+		    public boolean timeout(KThread thread) {
+			if (!waitQueue.remove(thread))
+			    return false;
+
+			thread.ready();
+			return true;
+		    }
+		};
+	}
+
+	return timeoutHandler;
     }
 
     /**
@@ -58,6 +125,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (site != null)
+	    site.released(Machine.timer().getTime() - acquireTime);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -73,7 +143,22 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the thread holding this lock. The answer is only meaningful with
+     * interrupts disabled.
+     *
+     * @return	the thread holding this lock, or <tt>null</tt> if it is free.
+     */
+    KThread getHolder() {
+	return lockHolder;
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private Alarm.TimedWaitQueue timeoutHandler = null;
+
+    private LockProfiler.Site site = LockProfiler.register(this);
+    private long acquireTime;
 }
@@ -0,0 +1,204 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for <tt>Lock</tt>, <tt>Semaphore</tt> and
+ * <tt>Condition2</tt>, aggregated by the place in the code where each object
+ * was created.
+ *
+ * <p>
+ * For every creation site the profiler counts the objects created there, the
+ * number of acquisitions (<tt>acquire()</tt>, <tt>P()</tt> or
+ * <tt>sleep()</tt>), how many of them had to wait, the total and maximum
+ * wait in ticks, and, for locks, the total time the lock was held. When the
+ * kernel terminates, <tt>print()</tt> lists the sites with the most total
+ * wait time first.
+ *
+ * <p>
+ * Profiling is enabled by setting the <tt>nachos.conf</tt> key
+ * <tt>LockProfiler.top</tt> to the number of sites to print. Objects created
+ * before the kernel initializes the profiler are not profiled. When
+ * profiling is disabled, every synchronization object has a <tt>null</tt>
+ * site, and the only cost on its fast paths is testing for that.
+ */
+public class LockProfiler {
+    /**
+     * Enable profiling if it is configured. Called by the kernel before the
+     * first thread is created.
+     */
+    public static void initialize() {
+	top = Config.getInteger("LockProfiler.top", 0);
+	Lib.assertTrue(top >= 0, "bad value for LockProfiler.top");
+
+	if (top > 0)
+	    sites = new HashMap<String,Site>();
+    }
+
+    /**
+     * Return the site for a synchronization object that is being created.
+     * The site is the first caller outside the constructors of the
+     * synchronization classes.
+     *
+     * @param	object	the object being created.
+     * @return	the site to charge, or <tt>null</tt> if profiling is disabled.
+     */
+    static Site register(Object object) {
+	if (sites == null)
+	    return null;
+
+	String kind = object.getClass().getName();
+	kind = kind.substring(kind.lastIndexOf('.')+1);
+
+	String location = "?";
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    String className = trace[i].getClassName();
+	    if (className.equals(LockProfiler.class.getName())
+		|| trace[i].getMethodName().equals("<init>")
+		   && isPrimitive(className))
+		continue;
+
+	    location = className.substring(className.lastIndexOf('.')+1)
+		+ "." + trace[i].getMethodName() + ":"
+		+ trace[i].getLineNumber();
+	    break;
+	}
+
+	String key = kind + " " + location;
+	Site site = sites.get(key);
+	if (site == null) {
+	    site = new Site(kind, location);
+	    sites.put(key, site);
+	}
+	site.numObjects++;
+
+	return site;
+    }
+
+    private static boolean isPrimitive(String className) {
+	for (int i=0; i<primitives.length; i++) {
+	    if (className.equals(primitives[i].getName()))
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Print the sites with the most total wait time, up to the configured
+     * number. Does nothing if profiling is disabled.
+     */
+    public static void print() {
+	if (sites == null)
+	    return;
+
+	ArrayList<Site> sorted = new ArrayList<Site>(sites.values());
+	Collections.sort(sorted, new Comparator<Site>() {
+		public int compare(Site a, Site b) {
+		    if (a.totalWait != b.totalWait)
+			return (a.totalWait > b.totalWait) ? -1 : 1;
+		    else if (a.numAcquires != b.numAcquires)
+			return (a.numAcquires > b.numAcquires) ? -1 : 1;
+		    else
+			return a.location.compareTo(b.location);
+		}
+	    });
+
+	System.out.println("Lock contention, top " + top + " of "
+			   + sorted.size() + " sites by total wait:");
+	System.out.println(pad("kind", -13) + pad("site", -36)
+			   + pad("objs", 6) + pad("acquires", 10)
+			   + pad("waited", 8) + pad("avgwait", 9)
+			   + pad("maxwait", 9) + pad("avghold", 9));
+
+	for (int i=0; i<top && i<sorted.size(); i++) {
+	    Site site = sorted.get(i);
+	    System.out.println(pad(site.kind, -13) + pad(site.location, -36)
+			       + pad("" + site.numObjects, 6)
+			       + pad("" + site.numAcquires, 10)
+			       + pad("" + site.numContended, 8)
+			       + pad("" + average(site.totalWait,
+						  site.numContended), 9)
+			       + pad("" + site.maxWait, 9)
+			       + pad(site.numHolds == 0 ? "-" :
+				     "" + average(site.totalHold,
+						  site.numHolds), 9));
+	}
+    }
+
+    private static long average(long total, long count) {
+	return (count == 0) ? 0 : total / count;
+    }
+
+    /**
+     * Pad a string with spaces to <i>width</i> characters, on the left if
+     * <i>width</i> is positive, or on the right if it is negative.
+     */
+    private static String pad(String s, int width) {
+	StringBuffer buf = new StringBuffer();
+	int length = Math.abs(width);
+
+	if (s.length() >= length)
+	    s = s.substring(0, length-1);
+	if (width < 0)
+	    buf.append(s);
+	for (int i=s.length(); i<length; i++)
+	    buf.append(' ');
+	if (width > 0)
+	    buf.append(s);
+
+	return buf.toString();
+    }
+
+    /**
+     * The statistics of one creation site. The synchronization objects update
+     * these with interrupts disabled.
+     */
+    static class Site {
+	Site(String kind, String location) {
+	    this.kind = kind;
+	    this.location = location;
+	}
+
+	/**
+	 * Charge one acquisition, which waited <i>wait</i> ticks if it was
+	 * contended.
+	 */
+	void acquired(boolean contended, long wait) {
+	    numAcquires++;
+	    if (contended) {
+		numContended++;
+		totalWait += wait;
+		if (wait > maxWait)
+		    maxWait = wait;
+	    }
+	}
+
+	/**
+	 * Charge a lock hold of <i>hold</i> ticks.
+	 */
+	void released(long hold) {
+	    numHolds++;
+	    totalHold += hold;
+	}
+
+	String kind, location;
+	int numObjects = 0;
+	long numAcquires = 0, numContended = 0;
+	long totalWait = 0, maxWait = 0;
+	long numHolds = 0, totalHold = 0;
+    }
+
+    /** The classes whose constructors are not creation sites. */
+    private static final Class<?>[] primitives = {
+	Lock.class, AdaptiveLock.class, Semaphore.class, Condition2.class
+    };
+
+    private static HashMap<String,Site> sites = null;
+    private static int top = 0;
+}
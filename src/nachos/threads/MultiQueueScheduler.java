@@ -0,0 +1,217 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A round-robin scheduler that splits the ready queue into one FIFO queue per
+ * CPU.
+ *
+ * <p>
+ * A thread that becomes ready is queued on the CPU that last ran it, so that
+ * it keeps whatever state it left in that CPU's caches; a thread that has
+ * never run is queued on the CPU with the shortest queue. CPUs take turns
+ * dispatching threads from their own queues. A CPU whose queue is empty steals
+ * the thread at the tail of the longest queue instead of idling.
+ *
+ * <p>
+ * The simulated machine has a single processor, so the CPUs here are virtual:
+ * each call to <tt>nextThread()</tt> on the ready queue is the next CPU's
+ * turn. This models the placement and balancing decisions of a multiprocessor
+ * kernel, without the ready queue ever being shared between CPUs. The number
+ * of CPUs is set by the <tt>nachos.conf</tt> key
+ * <tt>MultiQueueScheduler.numCPUs</tt>.
+ *
+ * <p>
+ * All other queues (locks, semaphores, joins) are ordinary FIFO queues.
+ */
+public class MultiQueueScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new per-CPU round-robin scheduler.
+     */
+    public MultiQueueScheduler() {
+	numCPUs = Config.getInteger("MultiQueueScheduler.numCPUs", 2);
+	Lib.assertTrue(numCPUs > 0, "bad value for MultiQueueScheduler.numCPUs");
+    }
+
+    /**
+     * Allocate the ready queue, with one FIFO queue per CPU.
+     *
+     * @return	a new per-CPU ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Lib.assertTrue(readyQueue == null);
+
+	readyQueue = new PerCPUQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Return the CPU that last ran the specified thread, or -1 if it has never
+     * run.
+     *
+     * @param	thread	the thread to look up.
+     * @return	the thread's last CPU.
+     */
+    public int getLastCPU(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).lastCPU;
+    }
+
+    /**
+     * Print the dispatch and load-balancing statistics of each CPU.
+     */
+    public void printStats() {
+	if (readyQueue == null)
+	    return;
+
+	for (int i=0; i<numCPUs; i++) {
+	    CPU cpu = readyQueue.cpus[i];
+	    System.out.println("CPU " + i + ": dispatches " + cpu.numDispatches
+			       + ", crowded wakeups " + cpu.numCrowdedWakeups
+			       + ", steals " + cpu.numSteals
+			       + ", stolen from " + cpu.numStolenFrom
+			       + ", idle " + cpu.numIdle
+			       + ", max queue " + cpu.maxQueueLength);
+	}
+    }
+
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class ThreadState {
+	/** The CPU that last ran this thread, or -1. */
+	int lastCPU = -1;
+    }
+
+    private class CPU {
+	LinkedList<KThread> queue = new LinkedList<KThread>();
+
+	int numDispatches = 0;
+	/** Wakeups kept here although another CPU had a shorter queue. */
+	int numCrowdedWakeups = 0;
+	int numSteals = 0;
+	int numStolenFrom = 0;
+	int numIdle = 0;
+	int maxQueueLength = 0;
+    }
+
+    private class PerCPUQueue extends ThreadQueue {
+	PerCPUQueue() {
+	    cpus = new CPU[numCPUs];
+	    for (int i=0; i<numCPUs; i++)
+		cpus[i] = new CPU();
+	}
+
+	/**
+	 * Queue a thread on the CPU that last ran it, or on the least loaded
+	 * CPU if it has never run.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    CPU cpu;
+	    if (state.lastCPU >= 0) {
+		cpu = cpus[state.lastCPU];
+
+		// count what affinity costs: the thread waits behind more
+		// threads than it would have on the least loaded CPU
+		if (cpu.queue.size() > cpus[shortestQueue()].queue.size())
+		    cpu.numCrowdedWakeups++;
+	    }
+	    else {
+		cpu = cpus[shortestQueue()];
+	    }
+
+	    cpu.queue.add(thread);
+	    if (cpu.queue.size() > cpu.maxQueueLength)
+		cpu.maxQueueLength = cpu.queue.size();
+	}
+
+	/**
+	 * Give the next CPU its turn. It runs the first thread on its own
+	 * queue, or steals the last thread from the longest queue if its own
+	 * is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    turn = (turn+1) % numCPUs;
+	    CPU cpu = cpus[turn];
+
+	    KThread thread;
+	    if (!cpu.queue.isEmpty()) {
+		thread = cpu.queue.removeFirst();
+	    }
+	    else {
+		CPU victim = cpus[longestQueue()];
+		if (victim.queue.isEmpty()) {
+		    cpu.numIdle++;
+		    return null;
+		}
+
+		thread = victim.queue.removeLast();
+		victim.numStolenFrom++;
+		cpu.numSteals++;
+
+		Lib.debug(dbgCPU, "CPU " + turn + " stole " + thread);
+	    }
+
+	    cpu.numDispatches++;
+	    getThreadState(thread).lastCPU = turn;
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).lastCPU = turn;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numCPUs; i++) {
+		System.out.print("CPU " + i + ":");
+		for (KThread thread : cpus[i].queue)
+		    System.out.print(" " + thread);
+		System.out.println();
+	    }
+	}
+
+	private int shortestQueue() {
+	    int best = turn;
+	    for (int i=0; i<numCPUs; i++) {
+		if (cpus[i].queue.size() < cpus[best].queue.size())
+		    best = i;
+	    }
+	    return best;
+	}
+
+	private int longestQueue() {
+	    int best = turn;
+	    for (int i=0; i<numCPUs; i++) {
+		if (cpus[i].queue.size() > cpus[best].queue.size())
+		    best = i;
+	    }
+	    return best;
+	}
+
+	private CPU[] cpus;
+	private int turn = 0;
+    }
+
+    private int numCPUs;
+    private PerCPUQueue readyQueue = null;
+
+    private static final char dbgCPU = 'c';
+}
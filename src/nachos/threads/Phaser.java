@@ -0,0 +1,231 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Phaser</tt> is a reusable barrier whose set of parties can change.
+ * Threads <tt>register()</tt> to become parties and
+ * <tt>arriveAndDeregister()</tt> when they are done. The phaser counts
+ * <i>phases</i>, starting at 0; a phase ends, and the next one begins, when
+ * every registered party has arrived.
+ *
+ * <ul>
+ * <li><tt>arrive()</tt>: arrive in the current phase without waiting.
+ * <li><tt>arriveAndAwaitAdvance()</tt>: arrive, and wait for the phase to
+ * end, like <tt>Barrier.await()</tt>.
+ * <li><tt>awaitAdvance()</tt>: wait for a given phase to end. Threads that
+ * are not parties can use this to follow the parties' progress.
+ * </ul>
+ *
+ * <p>
+ * When a phase ends, every thread waiting for it is moved to the ready queue
+ * in one pass. A thread only ever waits for the end of the current phase, so
+ * none of them needs to check again and go back to sleep. Waiting threads are
+ * kept in a queue of the current scheduler, so this works with any
+ * <tt>Scheduler</tt>.
+ *
+ * @see	Barrier
+ */
+public class Phaser {
+    /**
+     * Allocate a new phaser.
+     *
+     * @param	parties	the number of parties initially registered.
+     */
+    public Phaser(int parties) {
+	Lib.assertTrue(parties >= 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Add a party to this phaser. The new party takes part in the current
+     * phase, which therefore will not end until it arrives.
+     *
+     * @return	the current phase.
+     */
+    public int register() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	parties++;
+	int current = phase;
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive in the current phase without waiting for the other parties.
+     *
+     * @return	the phase arrived in.
+     */
+    public int arrive() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int current = phase;
+	arrived();
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive in the current phase, and stop being a party, so that later
+     * phases do not wait for the caller.
+     *
+     * @return	the phase arrived in.
+     */
+    public int arriveAndDeregister() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(parties > 0);
+
+	int current = phase;
+	parties--;
+	if (arrivals == parties)
+	    advance();
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive in the current phase, and wait for every other party to arrive.
+     *
+     * @return	the phase that has begun.
+     */
+    public int arriveAndAwaitAdvance() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int current = phase;
+	arrived();
+	if (phase == current) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(phase != current);
+	current = phase;
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Wait for phase <i>phase</i> to end. Returns immediately if the current
+     * phase is a different one.
+     *
+     * @param	phase	the phase to wait for, as returned by an earlier call.
+     * @return	the current phase.
+     */
+    public int awaitAdvance(int phase) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (this.phase == phase) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	int current = this.phase;
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Return the current phase.
+     *
+     * @return	the current phase.
+     */
+    public int getPhase() {
+	return phase;
+    }
+
+    /**
+     * Return the number of registered parties.
+     *
+     * @return	the number of parties.
+     */
+    public int getRegisteredParties() {
+	return parties;
+    }
+
+    /**
+     * Count one arrival in the current phase, and end the phase if every
+     * party has arrived. Must be called with interrupts disabled.
+     */
+    private void arrived() {
+	Lib.assertTrue(arrivals < parties);
+
+	if (++arrivals == parties)
+	    advance();
+    }
+
+    /**
+     * End the current phase and wake every thread waiting for it. Must be
+     * called with interrupts disabled.
+     */
+    private void advance() {
+	arrivals = 0;
+	phase++;
+
+	for (KThread thread = waitQueue.nextThread(); thread != null;
+	     thread = waitQueue.nextThread())
+	    thread.ready();
+    }
+
+    /**
+     * Test that this module is working, with parties that leave at different
+     * phases and an observer that is not a party.
+     */
+    public static void selfTest() {
+	final Phaser phaser = new Phaser(1);
+	final int[] inPhase = new int[1];
+
+	KThread[] threads = new KThread[4];
+	for (int i=0; i<threads.length; i++) {
+	    final int numPhases = 2*(i+1);
+	    phaser.register();
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numPhases-1; j++) {
+			    inPhase[0]++;
+			    KThread.yield();
+			    Lib.assertTrue(phaser.arriveAndAwaitAdvance() == j+1);
+			}
+			phaser.arriveAndDeregister();
+		    }
+		});
+	    threads[i].setName("phaser party " + i).fork();
+	}
+
+	// watch the parties without being one of them
+	KThread observer = new KThread(new Runnable() {
+		public void run() {
+		    for (int phase=0; phase<8; ) {
+			int next = phaser.awaitAdvance(phase);
+			Lib.assertTrue(next > phase);
+			phase = next;
+		    }
+		}
+	    });
+	observer.setName("phaser observer").fork();
+
+	// the main thread only takes part in the first phase
+	phaser.arriveAndDeregister();
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+	observer.join();
+
+	Lib.assertTrue(phaser.getPhase() == 8);
+	Lib.assertTrue(phaser.getRegisteredParties() == 0);
+	Lib.assertTrue(inPhase[0] == 1 + 3 + 5 + 7);
+    }
+
+    private int parties;
+    private int arrivals = 0;
+    private int phase = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -60,6 +60,16 @@ public class PriorityScheduler extends Scheduler {
     return getThreadState(thread).getEffectivePriority();
   }
   
+  public int getCachedEffectivePriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+    
+    // the effective priority is only stored when it is computed, and is
+    // the plain priority for a thread holding no queues
+    ThreadState state = getThreadState(thread);
+    return state.acquiredQueues.isEmpty()
+      ? state.priority : state.effectivePriority;
+  }
+  
   public void setPriority(KThread thread, int priority) {
     Lib.assertTrue(Machine.interrupt().disabled());
     
@@ -152,6 +162,26 @@ public class PriorityScheduler extends Scheduler {
       getThreadState(thread).acquire(this);
     }
     
+    public boolean remove(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      return waitQueue.remove(thread);
+    }
+    
+    public void acquireShared(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getThreadState(thread).getAcquiredQueues().add(this);
+    }
+    
+    public void release(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      getThreadState(thread).getAcquiredQueues().remove(this);
+      
+      // nextThread() must not take the queue away from the thread twice
+      if(resourceHolder == thread){
+	resourceHolder = null;
+      }// if
+    }
+    
     /**
      * Select the next thread that should run according to priority
      * scheduling.
@@ -162,7 +192,10 @@ public class PriorityScheduler extends Scheduler {
     public KThread nextThread() {
       Lib.assertTrue(Machine.interrupt().disabled());
       
-      getThreadState(resourceHolder).getAcquiredQueues().remove(this);
+      // the queue may have no holder, e.g. after it was last found empty
+      if(resourceHolder != null){
+	getThreadState(resourceHolder).getAcquiredQueues().remove(this);
+      }// if
       
       // get ThreadState object for the next thread to run
       ThreadState ts = pickNextThread();
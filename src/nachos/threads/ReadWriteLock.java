@@ -0,0 +1,331 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that any number of <i>readers</i> may
+ * hold at the same time, or a single <i>writer</i> may hold alone:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds the lock, and then
+ * hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, and then
+ * hold it for writing.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give the lock up,
+ * waking either one writer or every waiting reader once it is free.
+ * </ul>
+ *
+ * <p>
+ * By default, readers are preferred: a reader gets the lock whenever no
+ * writer holds it, even if writers are waiting, so a steady stream of readers
+ * can starve writers. A lock created with <i>preferWriters</i> set makes
+ * readers wait while any writer is waiting, and hands the lock to waiting
+ * writers before waiting readers; then writers can starve readers instead.
+ *
+ * <p>
+ * Both wait queues transfer priority. Waiting writers donate priority to
+ * every thread holding the lock, including every reader, and waiting readers
+ * donate priority to the writer holding it, so under
+ * <tt>PriorityScheduler</tt> a high-priority writer is not held up by
+ * low-priority readers for longer than their critical sections.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, only a thread that acquired the lock may release
+ * it, and a thread must not acquire a lock it already holds.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock that prefers readers. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	preferWriters	<tt>true</tt> if waiting writers should get the
+     *				lock before waiting or arriving readers.
+     */
+    public ReadWriteLock(boolean preferWriters) {
+	this.preferWriters = preferWriters;
+    }
+
+    /**
+     * Atomically wait until no writer holds this lock, and then hold it for
+     * reading.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || (preferWriters && numWaitingWriters > 0)) {
+	    numWaitingReaders++;
+	    readerQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    numReaders++;
+	    writerQueue.acquireShared(thread);
+	}
+
+	Lib.assertTrue(writer == null && numReaders > 0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release a read hold on this lock. If it was the last one, the lock is
+     * given to the next writer, or to all waiting readers.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(writer == null && numReaders > 0);
+
+	writerQueue.release(KThread.currentThread());
+	if (--numReaders == 0)
+	    grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until no thread holds this lock, and then hold it for
+     * writing.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || numReaders > 0) {
+	    numWaitingWriters++;
+	    writerQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writer = thread;
+	    writerQueue.acquire(thread);
+	    readerQueue.acquireShared(thread);
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock, which the current thread holds for writing, and give
+     * it to waiting readers or the next writer.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writerQueue.release(writer);
+	readerQueue.release(writer);
+	writer = null;
+	grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Give this lock, which no thread holds, to the next writer or to every
+     * waiting reader. Must be called with interrupts disabled.
+     */
+    private void grant() {
+	if (numWaitingWriters > 0 && (preferWriters || numWaitingReaders == 0)) {
+	    numWaitingWriters--;
+	    writer = writerQueue.nextThread();
+	    readerQueue.acquireShared(writer);
+	    writer.ready();
+	    return;
+	}
+
+	while (numWaitingReaders > 0) {
+	    numWaitingReaders--;
+	    numReaders++;
+
+	    KThread thread = readerQueue.nextThread();
+	    readerQueue.release(thread);
+	    writerQueue.acquireShared(thread);
+	    thread.ready();
+	}
+    }
+
+    /**
+     * Check mutual exclusion between readers and writers, and that a waiting
+     * writer donates its priority to a low-priority reader.
+     */
+    public static void selfTest() {
+	final ReadWriteLock rw = new ReadWriteLock(true);
+	final int[] state = new int[2];		// readers inside, writers inside
+	final int[] maxReaders = new int[1];
+
+	KThread[] threads = new KThread[8];
+	for (int i=0; i<threads.length; i++) {
+	    final boolean isWriter = (i % 4 == 3);
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    if (isWriter) {
+				rw.acquireWrite();
+				Lib.assertTrue(state[0] == 0 && state[1] == 0);
+				state[1]++;
+				KThread.yield();
+				state[1]--;
+				rw.releaseWrite();
+			    }
+			    else {
+				rw.acquireRead();
+				Lib.assertTrue(state[1] == 0);
+				maxReaders[0] = Math.max(maxReaders[0],
+							 ++state[0]);
+				KThread.yield();
+				state[0]--;
+				rw.releaseRead();
+			    }
+			    KThread.yield();
+			}
+		    }
+		});
+	    threads[i].setName((isWriter ? "writer" : "reader") + i).fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(maxReaders[0] > 1);
+
+	if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+	    return;
+
+	final ReadWriteLock donated = new ReadWriteLock();
+	final KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    donated.acquireRead();
+		    KThread.yield();
+
+		    // the writer is now waiting, so this reader runs at its priority
+		    boolean intStatus = Machine.interrupt().disable();
+		    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority()
+				   == PriorityScheduler.priorityMaximum);
+		    Machine.interrupt().restore(intStatus);
+
+		    donated.releaseRead();
+		}
+	    });
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    donated.acquireWrite();
+		    donated.releaseWrite();
+		}
+	    });
+
+	// run at the reader's priority, so that yield() lets it run
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getPriority();
+	ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMinimum);
+	ThreadedKernel.scheduler.setPriority(reader,
+					     PriorityScheduler.priorityMinimum);
+	ThreadedKernel.scheduler.setPriority(writer,
+					     PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	reader.setName("low reader").fork();
+	KThread.yield();
+	writer.setName("high writer").fork();
+
+	reader.join();
+	writer.join();
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Compare this lock with <tt>Lock</tt> on a read-mostly workload, and
+     * print the simulated time each takes. Each of <i>numThreads</i> threads
+     * performs <i>numOps</i> operations, one in ten of them writes; every
+     * operation holds the lock while it waits on the alarm, as if reading a
+     * structure that is partly on disk.
+     *
+     * @param	numThreads	the number of threads.
+     * @param	numOps		the number of operations per thread.
+     */
+    public static void benchmark(int numThreads, int numOps) {
+	long rwTicks = runMix(numThreads, numOps, new ReadWriteLock(), null);
+	long lockTicks = runMix(numThreads, numOps, null, new Lock());
+
+	System.out.println("ReadWriteLock: " + numThreads + " threads, "
+			   + numOps + " ops each, 90% reads: "
+			   + rwTicks + " ticks; Lock: " + lockTicks + " ticks");
+    }
+
+    private static long runMix(final int numThreads, final int numOps,
+			       final ReadWriteLock rw, final Lock lock) {
+	long start = Machine.timer().getTime();
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numOps; j++) {
+			    boolean write = (Lib.random(10) == 0);
+
+			    if (rw == null)
+				lock.acquire();
+			    else if (write)
+				rw.acquireWrite();
+			    else
+				rw.acquireRead();
+
+			    ThreadedKernel.alarm.waitUntil(holdTicks);
+
+			    if (rw == null)
+				lock.release();
+			    else if (write)
+				rw.releaseWrite();
+			    else
+				rw.releaseRead();
+			}
+		    }
+		});
+	    threads[i].setName("mix" + i).fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	return Machine.timer().getTime() - start;
+    }
+
+    private static final int holdTicks = 100;
+
+    private boolean preferWriters;
+
+    private KThread writer = null;
+    private int numReaders = 0;
+    private int numWaitingReaders = 0;
+    private int numWaitingWriters = 0;
+
+    private ThreadQueue readerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -0,0 +1,145 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The shared part of the bounded channels: the lock, the two condition
+ * variables, and the indices of a fixed-size circular array. Subclasses own
+ * the array itself, so that <tt>BoundedIntChannel</tt> can store its elements
+ * without boxing them.
+ *
+ * <p>
+ * Items occupy the <i>count</i> slots starting at <i>head</i>, wrapping
+ * around at <i>capacity</i>. Every method here must be called with the lock
+ * held.
+ */
+abstract class RingBuffer {
+    /**
+     * Allocate the bookkeeping for a ring buffer.
+     *
+     * @param	capacity	the number of slots in the buffer.
+     */
+    RingBuffer(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
+
+	lock = new Lock();
+	notFull = new Condition2(lock);
+	notEmpty = new Condition2(lock);
+    }
+
+    /**
+     * Return the number of items the buffer can hold.
+     *
+     * @return	the capacity of the buffer.
+     */
+    public int capacity() {
+	return capacity;
+    }
+
+    /**
+     * Return the number of items in the buffer. Other threads may change this
+     * at any time, so the result is only a snapshot.
+     *
+     * @return	the number of items in the buffer.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Wait until there is at least one free slot.
+     *
+     * @param	block	<tt>false</tt> to return immediately if the buffer is
+     *			full.
+     * @return	<tt>true</tt> if there is a free slot.
+     */
+    boolean awaitSpace(boolean block) {
+	while (count == capacity) {
+	    if (!block)
+		return false;
+	    notFull.sleep();
+	}
+	return true;
+    }
+
+    /**
+     * Wait until there is at least one item.
+     *
+     * @param	block	<tt>false</tt> to return immediately if the buffer is
+     *			empty.
+     * @return	<tt>true</tt> if there is an item.
+     */
+    boolean awaitItems(boolean block) {
+	while (count == 0) {
+	    if (!block)
+		return false;
+	    notEmpty.sleep();
+	}
+	return true;
+    }
+
+    /**
+     * Return the index of the first free slot.
+     */
+    int tail() {
+	int tail = head + count;
+	return (tail >= capacity) ? tail - capacity : tail;
+    }
+
+    /**
+     * Return the number of free slots that follow <tt>tail()</tt> without
+     * wrapping around.
+     */
+    int contiguousSpace() {
+	int tail = tail();
+	return (tail >= head && count < capacity) ? capacity - tail
+						   : capacity - count;
+    }
+
+    /**
+     * Return the number of items that follow <i>head</i> without wrapping
+     * around.
+     */
+    int contiguousItems() {
+	return Math.min(count, capacity - head);
+    }
+
+    /**
+     * Account for <i>n</i> items stored at <tt>tail()</tt>, and wake the
+     * consumers that can now make progress.
+     */
+    void added(int n) {
+	count += n;
+
+	if (n == 1)
+	    notEmpty.wake();
+	else
+	    notEmpty.wakeAll();
+    }
+
+    /**
+     * Account for <i>n</i> items removed from <i>head</i>, and wake the
+     * producers that can now make progress.
+     */
+    void removed(int n) {
+	head += n;
+	if (head >= capacity)
+	    head -= capacity;
+	count -= n;
+
+	if (n == 1)
+	    notFull.wake();
+	else
+	    notFull.wakeAll();
+    }
+
+    Lock lock;
+    int capacity;
+    int head = 0;
+    int count = 0;
+
+    private Condition2 notFull;		// woken when slots are freed
+    private Condition2 notEmpty;	// woken when items are added
+}
@@ -0,0 +1,294 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.Arrays;
+
+/**
+ * A fixed-size ring buffer of scheduling events.
+ *
+ * <p>
+ * When enabled, <tt>KThread</tt> records an event every time a thread is made
+ * ready, goes to sleep, finishes, or is switched to. Each event holds the
+ * time, the thread that caused it, the thread it affects, the reason, and the
+ * effective priority of the affected thread. The buffer is allocated once, so
+ * recording an event allocates nothing, and only the most recent events are
+ * kept.
+ *
+ * <p>
+ * Tracing is enabled by setting the <tt>nachos.conf</tt> key
+ * <tt>SchedTrace.size</tt> to the number of events to keep. The buffer is
+ * written to the file named by <tt>SchedTrace.file</tt> (by default
+ * <tt>sched.trace</tt>) when the kernel terminates, or whenever
+ * <tt>dump()</tt> is called. <tt>main()</tt> reads such a file back and
+ * prints a timeline for each thread.
+ */
+public class SchedTrace {
+    /**
+     * Allocate the trace buffer if tracing is configured. Called by the
+     * kernel before the first thread is created.
+     */
+    public static void initialize() {
+	int size = Config.getInteger("SchedTrace.size", 0);
+	Lib.assertTrue(size >= 0, "bad value for SchedTrace.size");
+
+	if (size == 0)
+	    return;
+
+	ticks = new long[size];
+	from = new int[size];
+	to = new int[size];
+	reasons = new byte[size];
+	priorities = new byte[size];
+	threadNames = new String[size];
+
+	fileName = Config.getString("SchedTrace.file", "sched.trace");
+	enabled = true;
+    }
+
+    /**
+     * Record a scheduling event. Must be called with interrupts disabled.
+     *
+     * @param	reason	the kind of event, one of the <tt>reasonZZZ</tt>
+     *			constants.
+     * @param	cause	the thread that caused the event.
+     * @param	thread	the thread the event happened to, or <tt>null</tt>.
+     * @param	fromId	the ID of <i>cause</i>.
+     * @param	toId	the ID of <i>thread</i>, or -1.
+     */
+    static void record(int reason, KThread cause, KThread thread,
+		       int fromId, int toId) {
+	int i = next;
+	next = (next+1 == ticks.length) ? 0 : next+1;
+	count++;
+
+	ticks[i] = Machine.timer().getTime();
+	from[i] = fromId;
+	to[i] = toId;
+	reasons[i] = (byte) reason;
+	priorities[i] = (byte) ((thread == null) ? 0 :
+	    ThreadedKernel.scheduler.getCachedEffectivePriority(thread));
+	// keep the name, not the thread, so that finished threads can be
+	// collected
+	threadNames[i] = (thread == null) ? cause.getName() : thread.getName();
+    }
+
+    /**
+     * Write the events currently in the buffer to the trace file, oldest
+     * first. Does nothing if tracing is disabled or there is no file system.
+     *
+     * <p>
+     * The file is little-endian: the magic number, the number of events,
+     * then per event an 8-byte tick, 4-byte from and to IDs, and 1-byte
+     * reason and priority; then the number of named threads, and per thread
+     * its 4-byte ID, 2-byte name length and name.
+     */
+    public static void dump() {
+	if (!enabled || ThreadedKernel.fileSystem == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long recorded = count;
+	int size = (int) Math.min(recorded, ticks.length);
+	int first = (recorded > ticks.length) ? next : 0;
+
+	TreeMap<Integer,String> names = new TreeMap<Integer,String>();
+	int namesLength = 4;
+	for (int j=0; j<size; j++) {
+	    int i = (first+j) % ticks.length;
+	    Integer id = Integer.valueOf((to[i] < 0) ? from[i] : to[i]);
+	    if (!names.containsKey(id)) {
+		String name = threadNames[i];
+		names.put(id, name);
+		namesLength += 6 + name.getBytes().length;
+	    }
+	}
+
+	byte[] data = new byte[8 + size*eventLength + namesLength];
+	Lib.bytesFromInt(data, 0, magic);
+	Lib.bytesFromInt(data, 4, size);
+
+	int offset = 8;
+	for (int j=0; j<size; j++) {
+	    int i = (first+j) % ticks.length;
+	    Lib.bytesFromInt(data, offset, (int) ticks[i]);
+	    Lib.bytesFromInt(data, offset+4, (int) (ticks[i] >>> 32));
+	    Lib.bytesFromInt(data, offset+8, from[i]);
+	    Lib.bytesFromInt(data, offset+12, to[i]);
+	    data[offset+16] = reasons[i];
+	    data[offset+17] = priorities[i];
+	    offset += eventLength;
+	}
+
+	Lib.bytesFromInt(data, offset, names.size());
+	offset += 4;
+	for (Integer id : names.keySet()) {
+	    byte[] name = names.get(id).getBytes();
+	    Lib.bytesFromInt(data, offset, id.intValue());
+	    Lib.bytesFromShort(data, offset+4, (short) name.length);
+	    System.arraycopy(name, 0, data, offset+6, name.length);
+	    offset += 6 + name.length;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+	if (file == null) {
+	    Lib.debug(dbgTrace, "cannot open " + fileName);
+	    return;
+	}
+	file.write(data, 0, data.length);
+	file.close();
+
+	System.out.println("Scheduling trace: " + size + " of " + recorded
+			   + " events written to " + fileName);
+    }
+
+    /**
+     * Print a timeline for each thread in a trace file written by
+     * <tt>dump()</tt>. This runs outside of Nachos:
+     *
+     * <p><blockquote><pre>
+     * java nachos.threads.SchedTrace sched.trace [columns]
+     * </pre></blockquote>
+     *
+     * <p>
+     * Each thread gets one line, spanning the whole trace, on which
+     * <tt>#</tt> means running, <tt>.</tt> means ready and a blank means
+     * blocked (or not yet started, or finished), followed by its total
+     * running and ready time.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.err.println("usage: SchedTrace <trace file> [columns]");
+	    System.exit(1);
+	}
+	int columns = (args.length > 1) ? Integer.parseInt(args[1]) : 72;
+
+	DataInputStream in =
+	    new DataInputStream(new FileInputStream(args[0]));
+	byte[] header = new byte[8];
+	in.readFully(header);
+	if (Lib.bytesToInt(header, 0) != magic) {
+	    System.err.println(args[0] + ": not a scheduling trace");
+	    System.exit(1);
+	}
+
+	int size = Lib.bytesToInt(header, 4);
+	byte[] events = new byte[size*eventLength];
+	in.readFully(events);
+
+	TreeMap<Integer,String> names = new TreeMap<Integer,String>();
+	byte[] word = new byte[6];
+	in.readFully(word, 0, 4);
+	for (int n=Lib.bytesToInt(word, 0); n>0; n--) {
+	    in.readFully(word);
+	    byte[] name = new byte[Lib.bytesToUnsignedShort(word, 4)];
+	    in.readFully(name);
+	    names.put(Integer.valueOf(Lib.bytesToInt(word, 0)), new String(name));
+	}
+	in.close();
+
+	if (size == 0)
+	    return;
+
+	long start = tickAt(events, 0);
+	long end = tickAt(events, size-1) + 1;
+	double scale = (double) columns / (end - start);
+
+	System.out.println("ticks " + start + " to " + end + ", "
+			   + size + " events");
+
+	for (Integer id : names.keySet()) {
+	    char[] line = new char[columns];
+	    Arrays.fill(line, ' ');
+
+	    char state = ' ';
+	    long since = start, running = 0, ready = 0;
+
+	    for (int j=0; j<=size; j++) {
+		long tick = (j < size) ? tickAt(events, j) : end;
+		char newState = state;
+
+		if (j < size) {
+		    int offset = j*eventLength;
+		    int fromId = Lib.bytesToInt(events, offset+8);
+		    int toId = Lib.bytesToInt(events, offset+12);
+		    int reason = events[offset+16];
+
+		    if (reason == reasonSwitch && toId == id.intValue())
+			newState = '#';
+		    else if (reason == reasonSwitch && fromId == id.intValue()
+			     && state == '#')
+			newState = ' ';
+		    else if (reason == reasonReady && toId == id.intValue())
+			newState = '.';
+		    else if ((reason == reasonSleep || reason == reasonFinish)
+			     && fromId == id.intValue())
+			newState = ' ';
+		}
+
+		if (newState == state && j < size)
+		    continue;
+
+		if (state == '#')
+		    running += tick - since;
+		else if (state == '.')
+		    ready += tick - since;
+
+		int c0 = (int) ((since - start) * scale);
+		int c1 = (int) ((tick - start) * scale);
+		for (int c=c0; c<Math.max(c1, c0+1) && c<columns; c++) {
+		    if (state != ' ' && line[c] != '#')
+			line[c] = state;
+		}
+
+		state = newState;
+		since = tick;
+	    }
+
+	    System.out.println("|" + new String(line) + "| " + names.get(id)
+			       + " (#" + id + ") run " + running
+			       + " ready " + ready);
+	}
+    }
+
+    private static long tickAt(byte[] events, int j) {
+	int offset = j*eventLength;
+	return (Lib.bytesToInt(events, offset) & 0xFFFFFFFFL)
+	    | ((long) Lib.bytesToInt(events, offset+4) << 32);
+    }
+
+    /** A thread was put on the ready queue. */
+    public static final int reasonReady = 0;
+    /** The CPU was switched from one thread to another. */
+    public static final int reasonSwitch = 1;
+    /** A thread blocked. */
+    public static final int reasonSleep = 2;
+    /** A thread finished. */
+    public static final int reasonFinish = 3;
+
+    /** <tt>true</tt> if events are being recorded. */
+    static boolean enabled = false;
+
+    private static long[] ticks;
+    private static int[] from;
+    private static int[] to;
+    private static byte[] reasons;
+    private static byte[] priorities;
+    private static String[] threadNames;
+    private static int next = 0;
+    private static long count = 0;
+
+    private static String fileName;
+
+    private static final int magic = 0x4352544E;	// "NTRC"
+    private static final int eventLength = 18;
+
+    private static final char dbgTrace = 't';
+}
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads waiting to run on the processor. This is
+     * called once, when the first <tt>KThread</tt> is created. Schedulers that
+     * organize the ready set differently from other queues (for example, one
+     * queue per CPU) override this method.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(true);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -110,6 +122,24 @@ public abstract class Scheduler {
 	return getEffectivePriority(KThread.currentThread());
     }
 
+    /**
+     * Get the effective priority of the specified thread as of the last time
+     * the scheduler worked it out, without working it out again. This is
+     * cheap enough to call on every scheduling event, for tracing, but may
+     * not reflect donations made since. Must be called with interrupts
+     * disabled.
+     *
+     * <p>
+     * The default returns <tt>getEffectivePriority(thread)</tt>; schedulers
+     * for which that is expensive override this method.
+     *
+     * @param	thread	the thread to get the effective priority of.
+     * @return	the thread's last known effective priority.
+     */
+    public int getCachedEffectivePriority(KThread thread) {
+	return getEffectivePriority(thread);
+    }
+
     /**
      * Set the priority of the specified thread. Must be called with interrupts
      * disabled.
@@ -131,6 +161,27 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Decide whether one waiting thread should be chosen ahead of another by
+     * a synchronization object that keeps its own list of waiters, such as
+     * <tt>Condition2</tt>, and so does not go through a thread queue. The
+     * answer should match the order of a queue allocated with
+     * <tt>newThreadQueue(false)</tt>. Must be called with interrupts
+     * disabled.
+     *
+     * <p>
+     * The default compares the threads' priorities; schedulers that order
+     * threads some other way override this method.
+     *
+     * @param	thread	a waiting thread.
+     * @param	other	another waiting thread.
+     * @return	<tt>true</tt> if <i>thread</i> should be chosen before
+     *		<i>other</i>, or <tt>false</tt> if either may go first.
+     */
+    public boolean precedes(KThread thread, KThread other) {
+	return getPriority(thread) > getPriority(other);
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -154,4 +205,11 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Print any statistics this scheduler keeps. Called when the kernel
+     * terminates.
+     */
+    public void printStats() {
+    }
 }
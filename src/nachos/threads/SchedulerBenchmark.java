@@ -0,0 +1,232 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A synthetic workload for comparing schedulers.
+ *
+ * <p>
+ * The workload is a mix of three kinds of threads:
+ *
+ * <ul>
+ * <li>CPU-bound threads, which run bursts of work and yield between them;
+ * <li>I/O-bound threads, which run short bursts and then sleep on the alarm,
+ * as if waiting for a device;
+ * <li>lock-contending threads, which run their bursts, and yield, while
+ * holding a single shared lock. Their priorities cycle through the whole priority range, so
+ * that high-priority threads regularly wait for low-priority holders.
+ * </ul>
+ *
+ * Burst lengths are drawn from <tt>Lib.random()</tt>, so a run is repeatable
+ * for a given <tt>-s</tt> seed. The workload runs under whatever scheduler
+ * <tt>ThreadedKernel.scheduler</tt> names; to compare schedulers, run it once
+ * per scheduler with the same seed.
+ *
+ * <p>
+ * Results are printed as CSV: one row per thread with its turnaround, CPU,
+ * ready-queue wait and priority-inversion times in ticks, then one summary
+ * row with throughput (threads per million ticks), wait-time percentiles,
+ * total inversion time, and the host time per <tt>nextThread()</tt> call on
+ * a queue of the same size, in nanoseconds.
+ *
+ * <p>
+ * The workload is configured with these <tt>nachos.conf</tt> keys, all
+ * optional: <tt>SchedulerBenchmark.cpuThreads</tt>,
+ * <tt>SchedulerBenchmark.ioThreads</tt>,
+ * <tt>SchedulerBenchmark.lockThreads</tt>,
+ * <tt>SchedulerBenchmark.bursts</tt>,
+ * <tt>SchedulerBenchmark.cpuPriority</tt> and
+ * <tt>SchedulerBenchmark.ioPriority</tt>.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Run the configured workload to completion and print the results.
+     */
+    public static void run() {
+	int numCPU = Config.getInteger("SchedulerBenchmark.cpuThreads", 4);
+	int numIO = Config.getInteger("SchedulerBenchmark.ioThreads", 4);
+	int numLock = Config.getInteger("SchedulerBenchmark.lockThreads", 4);
+	int cpuPriority = Config.getInteger("SchedulerBenchmark.cpuPriority",
+					    PriorityScheduler.priorityDefault);
+	int ioPriority = Config.getInteger("SchedulerBenchmark.ioPriority",
+					   PriorityScheduler.priorityDefault);
+	bursts = Config.getInteger("SchedulerBenchmark.bursts", 20);
+	sharedLock = new Lock();
+
+	Worker[] workers = new Worker[numCPU + numIO + numLock];
+	int n = 0;
+	for (int i=0; i<numCPU; i++)
+	    workers[n++] = new Worker(cpuBound, cpuPriority);
+	for (int i=0; i<numIO; i++)
+	    workers[n++] = new Worker(ioBound, ioPriority);
+	for (int i=0; i<numLock; i++)
+	    workers[n++] = new Worker(lockBound,
+				      i % (PriorityScheduler.priorityMaximum+1));
+
+	String schedulerName = ThreadedKernel.scheduler.getClass().getName();
+	schedulerName = schedulerName.substring(schedulerName.lastIndexOf('.')+1);
+
+	long start = Machine.timer().getTime();
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<workers.length; i++) {
+	    ThreadedKernel.scheduler.setPriority(workers[i].thread,
+						 workers[i].priority);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<workers.length; i++) {
+	    workers[i].forkTime = Machine.timer().getTime();
+	    workers[i].thread.setName(kindNames[workers[i].kind] + i).fork();
+	}
+	for (int i=0; i<workers.length; i++)
+	    workers[i].thread.join();
+
+	long elapsed = Machine.timer().getTime() - start;
+
+	System.out.println("scheduler,thread,kind,priority,turnaround,run,"
+			   + "wait,inversion");
+
+	long[] waits = new long[workers.length];
+	long totalInversion = 0;
+	for (int i=0; i<workers.length; i++) {
+	    Worker w = workers[i];
+	    waits[i] = w.thread.getReadyTicks();
+	    totalInversion += w.inversionTicks;
+
+	    System.out.println(schedulerName + "," + w.thread.getName() + ","
+			       + kindNames[w.kind] + "," + w.priority + ","
+			       + (w.finishTime - w.forkTime) + ","
+			       + w.thread.getRunTicks() + "," + waits[i] + ","
+			       + w.inversionTicks);
+	}
+
+	Arrays.sort(waits);
+
+	System.out.println("scheduler,threads,ticks,throughput,wait_p50,"
+			   + "wait_p90,wait_p99,wait_max,inversion,"
+			   + "ns_per_nextThread");
+	System.out.println(schedulerName + "," + workers.length + ","
+			   + elapsed + ","
+			   + (workers.length * 1000000.0 / elapsed) + ","
+			   + percentile(waits, 50) + ","
+			   + percentile(waits, 90) + ","
+			   + percentile(waits, 99) + ","
+			   + waits[waits.length-1] + ","
+			   + totalInversion + ","
+			   + timeNextThread(workers.length));
+    }
+
+    private static long percentile(long[] sorted, int p) {
+	int index = (sorted.length * p + 99) / 100 - 1;
+	return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * Measure the host time taken by <tt>nextThread()</tt> on a queue of the
+     * current scheduler holding <i>size</i> threads. The threads are never
+     * forked; they only serve as queue entries.
+     */
+    private static double timeNextThread(int size) {
+	final int rounds = 10000;
+
+	KThread[] threads = new KThread[size];
+	for (int i=0; i<size; i++)
+	    threads[i] = new KThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+	for (int i=0; i<size; i++) {
+	    ThreadedKernel.scheduler.setPriority(threads[i],
+		i % (PriorityScheduler.priorityMaximum+1));
+	    queue.waitForAccess(threads[i]);
+	}
+
+	long total = 0;
+	for (int r=0; r<rounds; r++) {
+	    long before = System.nanoTime();
+	    KThread thread = queue.nextThread();
+	    total += System.nanoTime() - before;
+
+	    queue.waitForAccess(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return (double) total / rounds;
+    }
+
+    /**
+     * Advance simulated time by at least <i>ticks</i> without giving up the
+     * CPU.
+     */
+    private static void spin(int ticks) {
+	for (int i=0; i<ticks; i+=Stats.KernelTick) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    private static class Worker implements Runnable {
+	Worker(int kind, int priority) {
+	    this.kind = kind;
+	    this.priority = priority;
+	    this.thread = new KThread(this);
+	}
+
+	public void run() {
+	    for (int i=0; i<bursts; i++) {
+		switch (kind) {
+		case cpuBound:
+		    spin(200 + Lib.random(800));
+		    KThread.yield();
+		    break;
+		case ioBound:
+		    spin(20 + Lib.random(80));
+		    ThreadedKernel.alarm.waitUntil(1000 + Lib.random(2000));
+		    break;
+		case lockBound:
+		    acquireShared();
+		    spin(100 + Lib.random(400));
+		    KThread.yield();
+		    holderPriority = -1;
+		    sharedLock.release();
+		    break;
+		}
+	    }
+
+	    finishTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Acquire the shared lock, charging the wait to inversion time if a
+	 * lower-priority thread was holding it.
+	 */
+	private void acquireShared() {
+	    boolean inverted = holderPriority >= 0 && holderPriority < priority;
+	    long before = Machine.timer().getTime();
+
+	    sharedLock.acquire();
+
+	    if (inverted)
+		inversionTicks += Machine.timer().getTime() - before;
+	    holderPriority = priority;
+	}
+
+	int kind;
+	int priority;
+	KThread thread;
+	long forkTime, finishTime;
+	long inversionTicks = 0;
+    }
+
+    private static final int cpuBound = 0, ioBound = 1, lockBound = 2;
+    private static final String[] kindNames = { "cpu", "io", "lock" };
+
+    private static int bursts;
+    private static Lock sharedLock;
+    private static int holderPriority = -1;
+}
@@ -36,8 +36,10 @@ public class Semaphore {
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	boolean contended = (value == 0);
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
 
-	if (value == 0) {
+	if (contended) {
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
 	}
@@ -45,7 +47,66 @@ public class Semaphore {
 	    value--;
 	}
 
+	if (site != null)
+	    site.acquired(contended, Machine.timer().getTime() - startTime);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * but give up if that takes more than <i>ticks</i> ticks.
+     *
+     * @param	ticks	the maximum number of ticks to wait. If not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean contended = (value == 0);
+	long startTime = (site == null) ? 0 : Machine.timer().getTime();
+	boolean acquired = true;
+
+	if (!contended) {
+	    value--;
+	}
+	else if (ticks > 0) {
+	    Alarm.WaitingThread timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, timeoutHandler());
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	    acquired = !ThreadedKernel.alarm.cancelTimeout(timeout);
+	}
+	else {
+	    acquired = false;
+	}
+
+	if (site != null && acquired)
+	    site.acquired(contended, Machine.timer().getTime() - startTime);
+
 	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Return the object through which the alarm ends timed waits on this
+     * semaphore, allocating it the first time it is needed.
+     */
+    private Alarm.TimedWaitQueue timeoutHandler() {
+	if (timeoutHandler == null) {
+	    timeoutHandler = new Alarm.TimedWaitQueue() {
+		    public boolean timeout(KThread thread) {
+			if (!waitQueue.remove(thread))
+			    return false;
+
+			thread.ready();
+			return true;
+		    }
+		};
+	}
+
+	return timeoutHandler;
     }
 
     /**
@@ -96,9 +157,18 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// nobody is left to V() pong, so a timed P() must give up
+	Lib.assertTrue(!pong.P(Stats.TimerTicks));
+	pong.V();
+	Lib.assertTrue(pong.P(Stats.TimerTicks));
     }
 
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private Alarm.TimedWaitQueue timeoutHandler = null;
+
+    private LockProfiler.Site site = LockProfiler.register(this);
 }
@@ -50,6 +50,31 @@ public class SynchList {
 	return o;
     }
 
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>ticks</i> ticks for the queue to become non-empty.
+     *
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue stayed empty.
+     */
+    public Object removeFirst(long ticks) {
+	Object o = null;
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (list.isEmpty()) {
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0 || !listEmpty.sleep(remaining))
+		break;
+	}
+	if (!list.isEmpty())
+	    o = list.removeFirst();
+	lock.release();
+
+	return o;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -81,6 +106,41 @@ public class SynchList {
 	}
     }
 
+    /**
+     * Measure the cost of passing objects back and forth through a pair of
+     * lists, as in <tt>selfTest()</tt>, and print the host time per item.
+     * Every item makes both threads wait on a <tt>Condition</tt> once, so
+     * running Nachos with <tt>java -verbose:gc</tt> shows how much garbage
+     * the wait path produces.
+     *
+     * @param	items	the number of items to pass.
+     */
+    public static void benchmark(int items) {
+	final SynchList ping = new SynchList();
+	final SynchList pong = new SynchList();
+	final int count = items;
+	final Integer token = Integer.valueOf(0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<count; i++)
+			pong.add(ping.removeFirst());
+		}
+	    }).setName("ping").fork();
+
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<count; i++) {
+	    ping.add(token);
+	    Lib.assertTrue(pong.removeFirst() == token);
+	}
+
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println("SynchList: " + count + " items, "
+			   + (elapsed / count) + " ns/item");
+    }
+
     private LinkedList<Object> list;
     private Lock lock;
     private Condition listEmpty;
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,48 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received access that it
+     * shares with other threads, such as a read lock. Unlike
+     * <tt>acquire()</tt>, this does not take access away from any thread
+     * that already has it, and it may be called while threads are waiting.
+     *
+     * <p>
+     * If the limited access object transfers priority, the threads waiting
+     * for access donate priority to every thread that has shared access,
+     * until <tt>release()</tt> is called for it. Queues that do not transfer
+     * priority may ignore this call, which is the default.
+     *
+     * @param	thread	the thread that has received shared access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread no longer has access, whether
+     * it received it through <tt>acquire()</tt>, <tt>acquireShared()</tt> or
+     * <tt>nextThread()</tt>. Threads waiting for access stop donating
+     * priority to it. The default does nothing.
+     *
+     * @param	thread	the thread giving up access.
+     */
+    public void release(KThread thread) {
+    }
+
+    /**
+     * Remove a thread that has given up waiting for access, for example
+     * because its wait timed out. It no longer donates priority to the
+     * thread with access. Queues that cannot give up a waiting thread do not
+     * have to support this; the default asserts that it is never called.
+     *
+     * @param	thread	the thread that no longer wants access.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("cannot remove a waiting thread from this queue");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
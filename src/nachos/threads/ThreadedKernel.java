@@ -22,6 +22,10 @@ public class ThreadedKernel extends Kernel {
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+	// set time slice; 0 leaves threads to run until they give up the CPU
+	quantum = Config.getInteger("ThreadedKernel.quantum", 0);
+	Lib.assertTrue(quantum >= 0, "bad value for ThreadedKernel.quantum");
+
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
@@ -32,6 +36,8 @@ public class ThreadedKernel extends Kernel {
 	    fileSystem = null;
 
 	// start threading
+	SchedTrace.initialize();
+	LockProfiler.initialize();
 	new KThread(null);
 
 	alarm  = new Alarm();
@@ -52,6 +58,15 @@ public class ThreadedKernel extends Kernel {
 //	Boat.selfTest();
 //	PriorityScheduler.selfTest();
 
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    SchedulerBenchmark.run();
+	    ReadWriteLock.benchmark(8, 50);
+	    AdaptiveLock.benchmark(2, 50);
+	    AdaptiveLock.benchmark(8, 50);
+	    KThreadPool.benchmark(4, 4096, 64);
+	    SynchList.benchmark(10000);
+	}
+
 /*
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
@@ -70,6 +85,12 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (quantum > 0)
+	    KThread.printStats();
+	scheduler.printStats();
+	SchedTrace.dump();
+	LockProfiler.print();
+
 	Machine.halt();
     }
 
@@ -79,6 +100,11 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /**
+     * The number of ticks a thread may run before the timer preempts it, or
+     * 0 if threads are never preempted.
+     */
+    public static int quantum = 0;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
@@ -0,0 +1,105 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A FIFO list of waiting threads, linked through the threads themselves.
+ *
+ * <p>
+ * A thread waits on at most one synchronization object at a time, so each
+ * <tt>KThread</tt> carries a single link field that whichever list it is on
+ * uses. Adding and removing threads therefore never allocates, unlike a
+ * <tt>java.util.LinkedList</tt> or a scheduler <tt>ThreadQueue</tt>.
+ *
+ * <p>
+ * A wait list does no synchronization of its own; its owner must protect it,
+ * either with a lock or by disabling interrupts.
+ */
+class WaitList {
+    /**
+     * Allocate a new, empty wait list.
+     */
+    WaitList() {
+    }
+
+    /**
+     * Test if this list is empty.
+     *
+     * @return	<tt>true</tt> if no threads are on this list.
+     */
+    boolean isEmpty() {
+	return head == null;
+    }
+
+    /**
+     * Return the first thread on this list, without removing it.
+     *
+     * @return	the first thread, or <tt>null</tt> if this list is empty.
+     */
+    KThread first() {
+	return head;
+    }
+
+    /**
+     * Append a thread to the end of this list. The thread must not be on any
+     * wait list.
+     *
+     * @param	thread	the thread to append.
+     */
+    void add(KThread thread) {
+	Lib.assertTrue(thread.waitNext == null && thread != tail);
+
+	if (tail == null)
+	    head = thread;
+	else
+	    tail.waitNext = thread;
+	tail = thread;
+    }
+
+    /**
+     * Remove and return the first thread on this list.
+     *
+     * @return	the first thread, or <tt>null</tt> if this list is empty.
+     */
+    KThread removeFirst() {
+	KThread thread = head;
+	if (thread == null)
+	    return null;
+
+	head = thread.waitNext;
+	if (head == null)
+	    tail = null;
+	thread.waitNext = null;
+
+	return thread;
+    }
+
+    /**
+     * Remove a thread from anywhere on this list.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was on this list.
+     */
+    boolean remove(KThread thread) {
+	KThread prev = null;
+	for (KThread t = head; t != null; prev = t, t = t.waitNext) {
+	    if (t != thread)
+		continue;
+
+	    if (prev == null)
+		head = t.waitNext;
+	    else
+		prev.waitNext = t.waitNext;
+	    if (tail == t)
+		tail = prev;
+	    t.waitNext = null;
+
+	    return true;
+	}
+
+	return false;
+    }
+
+    private KThread head = null;
+    private KThread tail = null;
+}
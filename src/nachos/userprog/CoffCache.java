@@ -0,0 +1,458 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed executables, shared by every process in the kernel.
+ *
+ * <p>
+ * Opening an executable and parsing its file and section headers takes
+ * several reads, each of which costs the file system's delay. The cache keeps
+ * recently run executables open and parsed, so that running a program again,
+ * as a shell does with the same few tools, skips all of that. It also keeps
+ * the contents of pages that have been read from an executable, so that a
+ * later process can fill a page without reading the file at all.
+ *
+ * <p>
+ * An executable is identified by its name, its length, and a stamp that
+ * changes whenever the kernel creates, writes, or removes a file of that
+ * name. Since pages are read from the file while a program runs, the kernel
+ * must not change an executable that a process is running: as in UNIX,
+ * <tt>beginWrite()</tt> refuses to let a file be created or written while
+ * it is running, and <tt>open()</tt> refuses to run a file while it is being
+ * written. A running executable may still be removed, because its open file
+ * keeps the old contents; <tt>modified()</tt> then makes the cached copy
+ * stale, so that the next <tt>open()</tt> of the name parses the new file.
+ *
+ * <p>
+ * The cache is kept in least recently used order, and is bounded in two
+ * ways, set by <tt>nachos.conf</tt> keys: <tt>UserKernel.coffCacheFiles</tt>
+ * executables, each holding a file open, and
+ * <tt>UserKernel.coffCachePages</tt> cached pages in total. Executables no
+ * process is running are closed, oldest first, to stay within the bounds.
+ * Pages of executables that are running are kept, but no new page is cached
+ * while the page limit is reached.
+ */
+class CoffCache {
+    /**
+     * Open an executable, returning its cached image if one is up to date,
+     * or else parsing the file. Every successful call must be matched by a
+     * call to <tt>release()</tt>.
+     *
+     * @param	name	the name of the executable.
+     * @return	the executable's image, or <tt>null</tt> if the file could not
+     *		be opened or is not a valid executable.
+     */
+    static Image open(String name) {
+	lock.acquire();
+
+	if (maxFiles < 0) {
+	    maxFiles = Config.getInteger("UserKernel.coffCacheFiles", 4);
+	    maxPages = Config.getInteger("UserKernel.coffCachePages", 64);
+	    Lib.assertTrue(maxFiles >= 0 && maxPages >= 0,
+			   "bad size for executable cache");
+	}
+
+	if (writers.containsKey(name)) {
+	    Lib.debug(dbgProcess, "\texecutable is being written");
+	    lock.release();
+	    return null;
+	}
+
+	Image image = images.get(name);
+	if (image != null) {
+	    image.refs++;
+	    numHits++;
+	    lock.release();
+	    return image;
+	}
+
+	numMisses++;
+	image = parse(name);
+	if (image != null) {
+	    image.refs = 1;
+	    images.put(name, image);
+	    trim(maxFiles, 0);
+	}
+
+	lock.release();
+	return image;
+    }
+
+    private static Image parse(String name) {
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null) {
+	    // the cache may be holding the files the file system allows open
+	    trim(0, 0);
+	    executable = ThreadedKernel.fileSystem.open(name, false);
+	}
+	if (executable == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return null;
+	}
+
+	ExecutableFile file = new ExecutableFile(executable);
+	try {
+	    Coff coff = new Coff(file);
+	    if (!file.changed)
+		return new Image(name, file, coff);
+	}
+	catch (EOFException e) {
+	}
+
+	file.close();
+	Lib.debug(dbgProcess, "\tcoff load failed");
+	return null;
+    }
+
+    /**
+     * Give up a reference to an image returned by <tt>open()</tt>. The image
+     * stays cached, unless it is stale or the cache is over its bounds.
+     *
+     * @param	image	the image.
+     */
+    static void release(Image image) {
+	lock.acquire();
+
+	Lib.assertTrue(image.refs > 0);
+	if (--image.refs == 0) {
+	    if (images.get(image.name) != image)
+		image.close();
+	    else
+		trim(maxFiles, 0);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Note that a file has been removed, so that any cached image of it is
+     * out of date. Processes running the image keep reading it from their
+     * open file.
+     *
+     * @param	name	the name of the file.
+     */
+    static void modified(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null) {
+	    Lib.debug(dbgProcess, "executable " + name + " modified");
+	    if (image.refs == 0)
+		image.close();
+	}
+	nextStamp++;
+
+	lock.release();
+    }
+
+    /**
+     * Get permission to create, truncate, or write a file. This is refused
+     * if a process is running the file, and otherwise drops any cached image
+     * of it and keeps it from being run until <tt>endWrite()</tt> is called.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file may be changed, or <tt>false</tt> if
+     *		it is the executable of a running process.
+     */
+    static boolean beginWrite(String name) {
+	lock.acquire();
+
+	Image image = images.get(name);
+	if (image != null && image.refs > 0) {
+	    Lib.debug(dbgProcess, "executable " + name + " is running");
+	    lock.release();
+	    return false;
+	}
+
+	if (image != null) {
+	    images.remove(name);
+	    image.close();
+	}
+	nextStamp++;
+
+	Integer count = writers.get(name);
+	writers.put(name, (count == null) ? 1 : count+1);
+
+	lock.release();
+	return true;
+    }
+
+    /**
+     * Finish a change allowed by <tt>beginWrite()</tt>.
+     *
+     * @param	name	the name of the file.
+     */
+    static void endWrite(String name) {
+	lock.acquire();
+
+	int count = writers.get(name);
+	if (count == 1)
+	    writers.remove(name);
+	else
+	    writers.put(name, count-1);
+
+	lock.release();
+    }
+
+    /**
+     * Close every cached executable that no process is running, so that
+     * their files can be opened by someone else.
+     */
+    static void flush() {
+	lock.acquire();
+	trim(0, 0);
+	lock.release();
+    }
+
+    /**
+     * Close images that no process is running, least recently used first,
+     * until at most <i>files</i> images are cached and there is room for
+     * <i>pages</i> more pages. Must be called with the lock held.
+     *
+     * @return	<tt>true</tt> if there is room for the pages.
+     */
+    private static boolean trim(int files, int pages) {
+	Iterator<Image> i = images.values().iterator();
+	while (i.hasNext()
+	       && (images.size() > files || numPages + pages > maxPages)) {
+	    Image image = i.next();
+	    if (image.refs == 0) {
+		i.remove();
+		image.close();
+	    }
+	}
+
+	return numPages + pages <= maxPages;
+    }
+
+    /**
+     * Return the number of times <tt>open()</tt> found an up to date image.
+     *
+     * @return	the number of cache hits.
+     */
+    static int getHits() {
+	return numHits;
+    }
+
+    /**
+     * Return the number of times <tt>open()</tt> had to parse a file.
+     *
+     * @return	the number of cache misses.
+     */
+    static int getMisses() {
+	return numMisses;
+    }
+
+    /**
+     * A parsed executable, and the contents of the pages read from it so far.
+     */
+    static class Image {
+	private Image(String name, ExecutableFile file, Coff coff) {
+	    this.name = name;
+	    this.file = file;
+	    this.coff = coff;
+	    length = file.length();
+	    stamp = nextStamp;
+
+	    int numSectionPages = 0;
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		numSectionPages = Math.max(numSectionPages,
+					   section.getFirstVPN()
+					   + section.getLength());
+	    }
+
+	    sections = new CoffSection[numSectionPages];
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		for (int i=0; i<section.getLength(); i++)
+		    sections[section.getFirstVPN()+i] = section;
+	    }
+	    pages = new byte[numSectionPages][];
+	}
+
+	/**
+	 * Return a key that identifies this version of the executable.
+	 *
+	 * @return	the executable's name, length, and modification stamp.
+	 */
+	String getKey() {
+	    return name + ":" + length + ":" + stamp;
+	}
+
+	/**
+	 * Return the parsed executable.
+	 *
+	 * @return	the executable.
+	 */
+	Coff getCoff() {
+	    return coff;
+	}
+
+	/**
+	 * Return the section containing a page.
+	 *
+	 * @param	vpn	the virtual page number.
+	 * @return	the section, or <tt>null</tt> if the page is past the
+	 *		executable's sections.
+	 */
+	CoffSection getSection(int vpn) {
+	    return (vpn < sections.length) ? sections[vpn] : null;
+	}
+
+	/**
+	 * Fill a frame with the initial contents of a page: its part of a
+	 * section, from the cache or else from the file, or zeros for the
+	 * stack and arguments.
+	 *
+	 * <p>
+	 * If the file has been cut short since it was parsed, so that the page
+	 * can no longer be read, the frame is not filled and the process that
+	 * needed it must be killed. The image is then stale, and the next
+	 * <tt>open()</tt> parses the file again.
+	 *
+	 * @param	vpn	the virtual page number.
+	 * @param	ppn	the frame to fill.
+	 * @return	<tt>true</tt> if the frame was filled.
+	 */
+	boolean loadPage(int vpn, int ppn) {
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+
+	    CoffSection section = getSection(vpn);
+	    if (section == null) {
+		Arrays.fill(memory, paddr, paddr+pageSize, (byte) 0);
+		return true;
+	    }
+
+	    byte[] page = pages[vpn];
+	    if (page != null) {
+		System.arraycopy(page, 0, memory, paddr, pageSize);
+		numPageHits++;
+		return true;
+	    }
+
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	    numPageReads++;
+
+	    lock.acquire();
+	    if (file.changed) {
+		Lib.debug(dbgProcess, "executable " + name + " changed");
+		if (images.get(name) == this)
+		    images.remove(name);
+		lock.release();
+		return false;
+	    }
+
+	    if (pages[vpn] == null && images.get(name) == this
+		&& trim(maxFiles, 1)) {
+		pages[vpn] = Arrays.copyOfRange(memory, paddr, paddr+pageSize);
+		numPages++;
+	    }
+	    lock.release();
+
+	    return true;
+	}
+
+	/**
+	 * Close the executable and drop its pages. Must be called with the
+	 * lock held.
+	 */
+	private void close() {
+	    for (int vpn=0; vpn<pages.length; vpn++) {
+		if (pages[vpn] != null)
+		    numPages--;
+		pages[vpn] = null;
+	    }
+
+	    coff.close();
+	}
+
+	private String name;
+	private ExecutableFile file;
+	private int length;
+	private int stamp;
+	private Coff coff;
+	private CoffSection[] sections;
+	private byte[][] pages;
+	private int refs = 0;
+    }
+
+    /**
+     * Return the number of pages filled from the cache.
+     *
+     * @return	the number of pages filled without reading the file.
+     */
+    static int getPageHits() {
+	return numPageHits;
+    }
+
+    /**
+     * Return the number of pages read from executable files.
+     *
+     * @return	the number of pages read.
+     */
+    static int getPageReads() {
+	return numPageReads;
+    }
+
+    /**
+     * An executable file that never fails a read. <tt>Coff</tt> and
+     * <tt>CoffSection</tt> assert that every read returns all the bytes
+     * they ask for, so a file cut short while a process is running it would
+     * take the whole kernel down. Instead, a short read is padded with zeros
+     * and marks the file as changed, so the caller can throw the data away.
+     */
+    private static class ExecutableFile extends OpenFile {
+	ExecutableFile(OpenFile file) {
+	    super(file.getFileSystem(), file.getName());
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    int amount = file.read(pos, buf, offset, length);
+	    if (amount < length) {
+		Arrays.fill(buf, offset + Math.max(amount, 0), offset+length,
+			    (byte) 0);
+		changed = true;
+	    }
+
+	    return length;
+	}
+
+	public int length() {
+	    return file.length();
+	}
+
+	public void close() {
+	    file.close();
+	}
+
+	private OpenFile file;
+	/** Set once a read has come up short. */
+	boolean changed = false;
+    }
+
+    private static LinkedHashMap<String,Image> images =
+	new LinkedHashMap<String,Image>(16, 0.75f, true);
+    private static HashMap<String,Integer> writers =
+	new HashMap<String,Integer>();
+    private static Lock lock = new Lock();
+    private static int maxFiles = -1, maxPages = -1;
+    private static int numPages = 0;
+    private static int nextStamp = 0;
+
+    private static int numHits = 0, numMisses = 0;
+    private static int numPageHits = 0, numPageReads = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,227 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A process's file descriptor table, mapping small integers to open files.
+ *
+ * <p>
+ * Free descriptors are tracked in a bitmap, one bit per descriptor, together
+ * with the index of the first word that may have a free bit. Allocating the
+ * lowest free descriptor therefore finds a zero bit in the first non-full
+ * word, and does not scan the table slot by slot. The table starts small and
+ * doubles when it fills up, up to the limit set by the <tt>nachos.conf</tt>
+ * key <tt>UserProcess.maxOpenFiles</tt>.
+ *
+ * <p>
+ * Descriptors refer to open files through a reference count, so several
+ * descriptors, in this table or in a copy of it, can share one
+ * <tt>OpenFile</tt> and its file position. The file is closed when the last
+ * descriptor referring to it is closed. <tt>dup()</tt> and <tt>copy()</tt>
+ * provide the sharing needed by <tt>dup</tt>- and <tt>fork</tt>-style
+ * system calls.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty file table.
+     */
+    public FileTable() {
+	if (maxOpenFiles < 0) {
+	    maxOpenFiles = Config.getInteger("UserProcess.maxOpenFiles", 16);
+	    Lib.assertTrue(maxOpenFiles >= 2,
+			   "bad value for UserProcess.maxOpenFiles");
+	}
+
+	grow(Math.min(initialSize, maxOpenFiles));
+    }
+
+    /**
+     * Return the file open as a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    public OpenFile get(int fd) {
+	if (fd < 0 || fd >= files.length || files[fd] == null)
+	    return null;
+
+	return files[fd].file;
+    }
+
+    /**
+     * Give an open file the lowest free descriptor.
+     *
+     * @param	file	the file. If <tt>null</tt>, as returned by a failed
+     *			open, no descriptor is allocated.
+     * @return	the new descriptor, or -1 if <i>file</i> is <tt>null</tt> or
+     *		the table is full.
+     */
+    public int add(OpenFile file) {
+	if (file == null)
+	    return -1;
+
+	return add(new Entry(file));
+    }
+
+    /**
+     * Give the file open as descriptor <i>fd</i> a second descriptor, the
+     * lowest free one. Both descriptors share the file and its position.
+     *
+     * @param	fd	the descriptor to duplicate.
+     * @return	the new descriptor, or -1 if <i>fd</i> is not open or the
+     *		table is full.
+     */
+    public int dup(int fd) {
+	if (get(fd) == null)
+	    return -1;
+
+	return add(files[fd]);
+    }
+
+    /**
+     * Close a descriptor. The file itself is closed if no other descriptor
+     * refers to it.
+     *
+     * @param	fd	the descriptor to close.
+     * @return	<tt>true</tt> if <i>fd</i> was open.
+     */
+    public boolean close(int fd) {
+	if (get(fd) == null)
+	    return false;
+
+	Entry entry = files[fd];
+	files[fd] = null;
+	used[fd / 64] &= ~(1L << (fd % 64));
+	firstFreeWord = Math.min(firstFreeWord, fd / 64);
+	numOpen--;
+
+	entry.release();
+	return true;
+    }
+
+    /**
+     * Close every descriptor in this table.
+     */
+    public void closeAll() {
+	for (int fd=0; fd<files.length; fd++)
+	    close(fd);
+    }
+
+    /**
+     * Return a new table with the same descriptors as this one, each sharing
+     * its file with the descriptor in this table.
+     *
+     * @return	the copy.
+     */
+    public FileTable copy() {
+	FileTable copy = new FileTable();
+	copy.grow(files.length);
+
+	for (int fd=0; fd<files.length; fd++) {
+	    if (files[fd] != null) {
+		files[fd].retain();
+		copy.files[fd] = files[fd];
+		copy.used[fd / 64] |= 1L << (fd % 64);
+	    }
+	}
+	copy.numOpen = numOpen;
+	copy.firstFreeWord = firstFreeWord;
+
+	return copy;
+    }
+
+    /**
+     * Return the number of open descriptors.
+     *
+     * @return	the number of open descriptors.
+     */
+    public int size() {
+	return numOpen;
+    }
+
+    private int add(Entry entry) {
+	if (numOpen == maxOpenFiles)
+	    return -1;
+
+	if (numOpen == files.length)
+	    grow(Math.min(2*files.length, maxOpenFiles));
+
+	// every word before firstFreeWord is full
+	while (used[firstFreeWord] == -1L)
+	    firstFreeWord++;
+
+	int fd = firstFreeWord*64
+	    + Long.numberOfTrailingZeros(~used[firstFreeWord]);
+	Lib.assertTrue(fd < files.length && files[fd] == null);
+
+	entry.retain();
+	files[fd] = entry;
+	used[fd / 64] |= 1L << (fd % 64);
+	numOpen++;
+
+	return fd;
+    }
+
+    /**
+     * Grow the table to hold <i>size</i> descriptors. The bits for
+     * descriptors past the end of the table are kept set, so that they are
+     * never allocated.
+     */
+    private void grow(int size) {
+	if (files != null && size <= files.length)
+	    return;
+
+	Entry[] newFiles = new Entry[size];
+	long[] newUsed = new long[(size + 63) / 64];
+
+	if (files != null) {
+	    System.arraycopy(files, 0, newFiles, 0, files.length);
+	    System.arraycopy(used, 0, newUsed, 0, used.length);
+
+	    // clear the bits that marked the end of the old table
+	    for (int fd=files.length; fd<used.length*64 && fd<size; fd++)
+		newUsed[fd / 64] &= ~(1L << (fd % 64));
+	}
+
+	for (int fd=size; fd<newUsed.length*64; fd++)
+	    newUsed[fd / 64] |= 1L << (fd % 64);
+
+	files = newFiles;
+	used = newUsed;
+    }
+
+    /**
+     * An open file and the number of descriptors that refer to it.
+     */
+    private static class Entry {
+	Entry(OpenFile file) {
+	    this.file = file;
+	}
+
+	void retain() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    refs++;
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	void release() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean last = (--refs == 0);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (last)
+		file.close();
+	}
+
+	OpenFile file;
+	int refs = 0;
+    }
+
+    private static final int initialSize = 16;
+    private static int maxOpenFiles = -1;
+
+    private Entry[] files = null;
+    private long[] used = null;
+    private int firstFreeWord = 0;
+    private int numOpen = 0;
+}
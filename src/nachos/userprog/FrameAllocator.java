@@ -0,0 +1,276 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's pool of physical memory frames, shared by every process.
+ *
+ * <p>
+ * Free frames are kept on a stack, and each frame records its position on the
+ * stack, or -1 if it is allocated. Allocating one frame pops the stack and
+ * freeing one pushes it, so both take constant time. A run of contiguous
+ * frames is found by scanning the positions for free frames, and each frame
+ * of the run is then taken off the stack in constant time by moving the top
+ * of the stack into its slot.
+ *
+ * <p>
+ * Every allocated frame is charged to an owner, normally a process ID, so
+ * that the kernel can tell how much memory each process holds. Frames that
+ * several processes share are charged to <tt>sharedOwner</tt>.
+ *
+ * <p>
+ * The allocator also keeps a <i>low watermark</i>, a number of frames held
+ * back for processes that are already running. <tt>canAdmit()</tt> refuses
+ * a new process whose memory would take the pool below the watermark, while
+ * <tt>allocate()</tt> still lets running processes use those last frames.
+ * The lowest number of free frames ever seen is kept as well, to show how
+ * close the system came to running out.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     * @param	lowWatermark	the number of frames to hold back from new
+     *				processes.
+     */
+    public FrameAllocator(int numFrames, int lowWatermark) {
+	Lib.assertTrue(numFrames > 0);
+	Lib.assertTrue(lowWatermark >= 0 && lowWatermark < numFrames);
+
+	this.lowWatermark = lowWatermark;
+
+	stack = new int[numFrames];
+	position = new int[numFrames];
+	owners = new int[numFrames];
+
+	// push the frames in reverse, so that the lowest frames go first
+	for (int i=0; i<numFrames; i++) {
+	    stack[i] = numFrames-1-i;
+	    position[numFrames-1-i] = i;
+	}
+	numFree = numFrames;
+	minFree = numFrames;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @param	owner	the owner to charge the frame to.
+     * @return	the physical page number of the frame, or -1 if no frame is
+     *		free.
+     */
+    public int allocate(int owner) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	if (numFree > 0) {
+	    ppn = stack[numFree-1];
+	    take(ppn, owner);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Allocate a run of physically contiguous frames.
+     *
+     * @param	owner	the owner to charge the frames to.
+     * @param	count	the number of frames.
+     * @return	the physical page number of the first frame, or -1 if there
+     *		is no free run of <i>count</i> frames.
+     */
+    public int allocate(int owner, int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = -1;
+	if (count <= numFree) {
+	    int run = 0;
+	    for (int ppn=0; ppn<position.length; ppn++) {
+		run = (position[ppn] >= 0) ? run+1 : 0;
+
+		if (run == count) {
+		    first = ppn-count+1;
+		    break;
+		}
+	    }
+	}
+
+	if (first >= 0) {
+	    for (int ppn=first; ppn<first+count; ppn++)
+		take(ppn, owner);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Return a frame to the pool.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public void free(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < position.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(position[ppn] < 0, "frame freed twice");
+
+	charge(owners[ppn], -1);
+	position[ppn] = numFree;
+	stack[numFree++] = ppn;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return a run of contiguous frames to the pool.
+     *
+     * @param	first	the physical page number of the first frame.
+     * @param	count	the number of frames.
+     */
+    public void free(int first, int count) {
+	for (int ppn=first; ppn<first+count; ppn++)
+	    free(ppn);
+    }
+
+    /**
+     * Decide whether a new process needing <i>count</i> frames may start
+     * without taking the pool below the low watermark.
+     *
+     * @param	count	the number of frames the process needs.
+     * @return	<tt>true</tt> if the process may start.
+     */
+    public boolean canAdmit(int count) {
+	return numFree - count >= lowWatermark;
+    }
+
+    /**
+     * Return whether the number of free frames is below the low watermark.
+     *
+     * @return	<tt>true</tt> if memory is low.
+     */
+    public boolean isLow() {
+	return numFree < lowWatermark;
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the lowest number of free frames there has ever been.
+     *
+     * @return	the fewest free frames seen.
+     */
+    public int getMinFree() {
+	return minFree;
+    }
+
+    /**
+     * Return the number of frames charged to an owner.
+     *
+     * @param	owner	the owner.
+     * @return	the number of frames the owner holds.
+     */
+    public int getUsage(int owner) {
+	boolean intStatus = Machine.interrupt().disable();
+	Integer usage = usages.get(owner);
+	Machine.interrupt().restore(intStatus);
+
+	return (usage == null) ? 0 : usage;
+    }
+
+    /**
+     * Take a free frame off the stack and charge it to an owner. Must be
+     * called with interrupts disabled.
+     */
+    private void take(int ppn, int owner) {
+	int index = position[ppn];
+	Lib.assertTrue(index >= 0);
+
+	// fill the frame's slot with the top of the stack
+	int top = stack[--numFree];
+	stack[index] = top;
+	position[top] = index;
+	position[ppn] = -1;
+
+	owners[ppn] = owner;
+	charge(owner, 1);
+
+	if (numFree < minFree)
+	    minFree = numFree;
+	if (numFree == lowWatermark-1)
+	    Lib.debug(dbgFrames, "frames below low watermark");
+    }
+
+    private void charge(int owner, int frames) {
+	Integer usage = usages.get(owner);
+	int newUsage = ((usage == null) ? 0 : usage) + frames;
+
+	if (newUsage == 0)
+	    usages.remove(owner);
+	else
+	    usages.put(owner, newUsage);
+    }
+
+    /**
+     * Test that this module is working, by allocating single frames and
+     * contiguous runs from a small pool.
+     */
+    public static void selfTest() {
+	FrameAllocator frames = new FrameAllocator(8, 2);
+
+	Lib.assertTrue(frames.allocate(1) == 0);
+	Lib.assertTrue(frames.allocate(1) == 1);
+	Lib.assertTrue(frames.allocate(2, 3) == 2);
+	Lib.assertTrue(frames.getUsage(1) == 2 && frames.getUsage(2) == 3);
+
+	// free frames 1 and 3, leaving holes too small for a run of 3
+	frames.free(1);
+	frames.free(3);
+	Lib.assertTrue(frames.allocate(3, 3) == 5);
+	Lib.assertTrue(frames.allocate(3, 3) == -1);
+	Lib.assertTrue(frames.getNumFree() == 2 && !frames.canAdmit(1));
+
+	// a single frame can come from either hole
+	int ppn = frames.allocate(3);
+	Lib.assertTrue(ppn == 1 || ppn == 3);
+	frames.free(ppn);
+
+	// free everything but frame 0, leaving room for a run of 4 after it
+	frames.free(2);
+	frames.free(4);
+	frames.free(5, 3);
+	Lib.assertTrue(frames.getUsage(1) == 1);
+	Lib.assertTrue(frames.getUsage(2) == 0 && frames.getUsage(3) == 0);
+	Lib.assertTrue(frames.allocate(4, 4) == 1);
+	Lib.assertTrue(frames.getMinFree() == 1);
+    }
+
+    /** Frames that several processes share are charged to this owner. */
+    public static final int sharedOwner = -1;
+
+    private int lowWatermark;
+
+    private int[] stack;
+    private int[] position;
+    private int[] owners;
+    private int numFree;
+    private int minFree;
+
+    private HashMap<Integer,Integer> usages = new HashMap<Integer,Integer>();
+
+    private static final char dbgFrames = 'a';
+}
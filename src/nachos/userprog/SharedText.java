@@ -0,0 +1,184 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An executable that one or more processes are running, with the frames
+ * holding its read-only pages.
+ *
+ * <p>
+ * The first process to load an executable allocates frames for the pages of
+ * its read-only sections. Later processes running the same executable find
+ * it here and map the same frames into their page tables, read-only, instead
+ * of allocating their own. Since those pages can never be written, they need
+ * no copy-on-write: a process that tries to store to one takes a read-only
+ * exception. The frames are freed when the last process using them unloads.
+ *
+ * <p>
+ * Pages are read on demand. A process maps every page invalid at first, and
+ * its first access to a read-only page takes a page fault that calls
+ * <tt>loadSharedPage()</tt>. A shared page is read once, by whichever process
+ * touches it first.
+ *
+ * <p>
+ * Executables are identified by the key of their <tt>CoffCache</tt> image:
+ * file name, length, and modification stamp.
+ */
+class SharedText {
+    private SharedText(String key, CoffCache.Image image, int numPages) {
+	this.key = key;
+	this.image = image;
+
+	frames = new int[numPages];
+	Arrays.fill(frames, -1);
+	loaded = new boolean[numPages];
+    }
+
+    /**
+     * Return the shared text of an executable, allocating frames for it if
+     * no running process is using it yet.
+     *
+     * @param	image	the executable, opened by the caller from the
+     *			<tt>CoffCache</tt>.
+     * @param	numPages	the number of pages in the address space of a
+     *				process running the executable.
+     * @return	the shared text, or <tt>null</tt> if there are not enough
+     *		free frames for it.
+     */
+    static SharedText acquire(CoffCache.Image image, int numPages) {
+	String key = image.getKey();
+
+	lock.acquire();
+
+	SharedText text = texts.get(key);
+	if (text != null) {
+	    text.refs++;
+	    numShared++;
+	    lock.release();
+	    return text;
+	}
+
+	text = new SharedText(key, image, numPages);
+	if (!text.allocateFrames()) {
+	    text.freeFrames();
+	    lock.release();
+	    return null;
+	}
+
+	text.refs = 1;
+	texts.put(key, text);
+	numLoaded++;
+
+	lock.release();
+	return text;
+    }
+
+    /**
+     * Allocate a frame for every page of the read-only sections.
+     */
+    private boolean allocateFrames() {
+	for (int vpn=0; vpn<frames.length; vpn++) {
+	    CoffSection section = image.getSection(vpn);
+	    if (section == null || !section.isReadOnly())
+		continue;
+
+	    frames[vpn] = UserKernel.frames.allocate(FrameAllocator.sharedOwner);
+	    if (frames[vpn] < 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Give up a reference to this text, freeing its frames if no process
+     * uses it any more.
+     */
+    void release() {
+	lock.acquire();
+
+	if (--refs == 0) {
+	    texts.remove(key);
+	    freeFrames();
+	}
+
+	lock.release();
+    }
+
+    private void freeFrames() {
+	for (int i=0; i<frames.length; i++) {
+	    if (frames[i] >= 0)
+		UserKernel.frames.free(frames[i]);
+	    frames[i] = -1;
+	}
+    }
+
+    /**
+     * Return the frame holding a read-only page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page is not in a
+     *		read-only section.
+     */
+    int getFrame(int vpn) {
+	return frames[vpn];
+    }
+
+    /**
+     * Make sure a read-only page has been read into its shared frame. Only
+     * the first process to touch the page reads it; a process that touches
+     * it while it is being read waits for the read to finish.
+     *
+     * @param	vpn	the virtual page number of a read-only page.
+     * @return	<tt>true</tt> if the page has been read, or <tt>false</tt> if
+     *		it could not be, because the executable has changed.
+     */
+    boolean loadSharedPage(int vpn) {
+	Lib.assertTrue(frames[vpn] >= 0);
+
+	pageLock.acquire();
+	if (!loaded[vpn])
+	    loaded[vpn] = image.loadPage(vpn, frames[vpn]);
+	boolean success = loaded[vpn];
+	pageLock.release();
+
+	return success;
+    }
+
+    /**
+     * Return the number of times an executable was loaded from its file,
+     * rather than found already running.
+     *
+     * @return	the number of loads.
+     */
+    static int getLoads() {
+	return numLoaded;
+    }
+
+    /**
+     * Return the number of times a process mapped text that was already
+     * loaded.
+     *
+     * @return	the number of times text was shared.
+     */
+    static int getShares() {
+	return numShared;
+    }
+
+    private String key;
+    private CoffCache.Image image;
+    private int[] frames;
+    private boolean[] loaded;
+    private Lock pageLock = new Lock();
+    private int refs = 0;
+
+    private static HashMap<String,SharedText> texts =
+	new HashMap<String,SharedText>();
+    private static Lock lock = new Lock();
+    private static int numLoaded = 0;
+    private static int numShared = 0;
+}
@@ -0,0 +1,231 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A table of system call handlers, indexed by syscall number, that also
+ * counts the calls made to each syscall and how long they take.
+ *
+ * <p>
+ * <tt>UserProcess</tt> registers a handler for each syscall it implements,
+ * and a subclass can register more, or replace one, with
+ * <tt>UserProcess.registerSyscall()</tt>. Dispatching a syscall is then a
+ * single array lookup.
+ *
+ * <p>
+ * For each syscall number, the table keeps the number of calls and a
+ * histogram of their latencies in ticks. As in an HDR histogram, the buckets
+ * are logarithmic, with four linear sub-buckets for each power of two, so
+ * every latency is recorded in constant time and space to within 25%,
+ * whether it is 10 ticks or 10 million. <tt>print()</tt> reports the count,
+ * total, mean, median, 99th percentile, and maximum of each syscall that was
+ * called.
+ */
+public class SyscallTable {
+    /**
+     * A handler for one system call.
+     */
+    public interface Handler {
+	/**
+	 * Handle a system call made by a process.
+	 *
+	 * @param	process	the process making the call.
+	 * @param	a0	the first syscall argument.
+	 * @param	a1	the second syscall argument.
+	 * @param	a2	the third syscall argument.
+	 * @param	a3	the fourth syscall argument.
+	 * @return	the value to be returned to the user.
+	 */
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3);
+    }
+
+    /**
+     * Allocate a new, empty syscall table.
+     *
+     * @param	size	one more than the largest syscall number.
+     */
+    public SyscallTable(int size) {
+	handlers = new Handler[size];
+	names = new String[size];
+	counts = new long[size];
+	totals = new long[size];
+	maxima = new long[size];
+	histograms = new int[size][];
+    }
+
+    /**
+     * Set the handler for a syscall, replacing any previous handler.
+     *
+     * @param	syscall	the syscall number.
+     * @param	name	the name of the syscall, for statistics.
+     * @param	handler	the handler.
+     */
+    public void register(int syscall, String name, Handler handler) {
+	Lib.assertTrue(syscall >= 0 && syscall < handlers.length);
+
+	handlers[syscall] = handler;
+	names[syscall] = name;
+    }
+
+    /**
+     * Return the handler for a syscall.
+     *
+     * @param	syscall	the syscall number.
+     * @return	the handler, or <tt>null</tt> if none is registered.
+     */
+    public Handler get(int syscall) {
+	if (syscall < 0 || syscall >= handlers.length)
+	    return null;
+
+	return handlers[syscall];
+    }
+
+    /**
+     * Count a call to a syscall. Called before the syscall is handled, so
+     * that calls that never return, such as <tt>exit()</tt>, are counted.
+     *
+     * @param	syscall	the syscall number.
+     */
+    public void count(int syscall) {
+	if (syscall >= 0 && syscall < counts.length)
+	    counts[syscall]++;
+    }
+
+    /**
+     * Record how long a call to a syscall took.
+     *
+     * @param	syscall	the syscall number.
+     * @param	ticks	the number of ticks the call took.
+     */
+    public void record(int syscall, long ticks) {
+	if (syscall < 0 || syscall >= counts.length || ticks < 0)
+	    return;
+
+	if (histograms[syscall] == null)
+	    histograms[syscall] = new int[numBuckets];
+
+	histograms[syscall][bucket(ticks)]++;
+	totals[syscall] += ticks;
+	maxima[syscall] = Math.max(maxima[syscall], ticks);
+    }
+
+    /**
+     * Return the number of calls counted for a syscall.
+     *
+     * @param	syscall	the syscall number.
+     * @return	the number of calls.
+     */
+    public long getCount(int syscall) {
+	return counts[syscall];
+    }
+
+    /**
+     * Print the statistics of every syscall that was called.
+     */
+    public void print() {
+	for (int syscall=0; syscall<counts.length; syscall++) {
+	    if (counts[syscall] == 0)
+		continue;
+
+	    String name = (names[syscall] != null)
+		? names[syscall] : "syscall " + syscall;
+	    String line = "Syscall " + name + ": calls " + counts[syscall];
+
+	    int[] histogram = histograms[syscall];
+	    if (histogram != null) {
+		long recorded = 0;
+		for (int i=0; i<numBuckets; i++)
+		    recorded += histogram[i];
+
+		line += ", ticks " + totals[syscall]
+		    + " (mean " + totals[syscall]/recorded
+		    + ", p50 " + percentile(histogram, recorded, 50)
+		    + ", p99 " + percentile(histogram, recorded, 99)
+		    + ", max " + maxima[syscall] + ")";
+	    }
+
+	    System.out.println(line);
+	}
+    }
+
+    /**
+     * Return the bucket holding a latency. Latencies below 4 ticks have a
+     * bucket each; above that, each power of two is split into four.
+     */
+    private static int bucket(long ticks) {
+	if (ticks < subBuckets)
+	    return (int) ticks;
+
+	int exponent = 63 - Long.numberOfLeadingZeros(ticks);
+	int sub = (int) (ticks >> (exponent - subBucketBits)) - subBuckets;
+
+	return subBuckets*(exponent - subBucketBits + 1) + sub;
+    }
+
+    /**
+     * Return the smallest latency that falls in a bucket.
+     */
+    private static long bucketStart(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int exponent = bucket/subBuckets + subBucketBits - 1;
+	long sub = bucket % subBuckets;
+
+	return (subBuckets + sub) << (exponent - subBucketBits);
+    }
+
+    /**
+     * Return the start of the bucket holding the given percentile of the
+     * recorded latencies.
+     */
+    private static long percentile(int[] histogram, long recorded,
+				   int percent) {
+	long rank = (recorded*percent + 99)/100;
+	long seen = 0;
+
+	for (int i=0; i<numBuckets; i++) {
+	    seen += histogram[i];
+	    if (seen >= rank && seen > 0)
+		return bucketStart(i);
+	}
+
+	return 0;
+    }
+
+    /**
+     * Test that latencies land in the right buckets.
+     */
+    public static void selfTest() {
+	for (long ticks=0; ticks<100000; ticks++) {
+	    int bucket = bucket(ticks);
+	    Lib.assertTrue(bucketStart(bucket) <= ticks);
+	    Lib.assertTrue(bucket+1 == numBuckets
+			   || bucketStart(bucket+1) > ticks);
+	}
+	Lib.assertTrue(bucket(Long.MAX_VALUE) == numBuckets-1);
+
+	SyscallTable table = new SyscallTable(1);
+	for (int i=0; i<99; i++) {
+	    table.count(0);
+	    table.record(0, 10);
+	}
+	table.count(0);
+	table.record(0, 1000);
+	Lib.assertTrue(table.getCount(0) == 100);
+	Lib.assertTrue(percentile(table.histograms[0], 100, 50) == 10);
+	Lib.assertTrue(percentile(table.histograms[0], 100, 99) == 10);
+	Lib.assertTrue(percentile(table.histograms[0], 100, 100) == 896);
+    }
+
+    private static final int subBucketBits = 2;
+    private static final int subBuckets = 1 << subBucketBits;
+    private static final int numBuckets = subBuckets*(64 - subBucketBits);
+
+    private Handler[] handlers;
+    private String[] names;
+    private long[] counts;
+    private long[] totals;
+    private long[] maxima;
+    private int[][] histograms;
+}
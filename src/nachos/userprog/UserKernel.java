@@ -23,6 +23,11 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frames = new FrameAllocator(numPhysPages,
+				    Config.getInteger("UserKernel.lowWatermark",
+						      numPhysPages/16));
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -35,6 +40,12 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
 	super.selfTest();
 
+	FrameAllocator.selfTest();
+	SyscallTable.selfTest();
+
+	if (Config.getBoolean("ThreadedKernel.benchmark", false))
+	    UserProcess.benchmarkVirtualMemory();
+
 	// test creat, open, read, write, and close, along with using multiple file descriptors in one process
 	System.out.println("\ncp.coff: cat.c -> blah.c");
 	UserProcess proc1 = new UserProcess();
@@ -115,6 +126,9 @@ public class UserKernel extends ThreadedKernel {
     public void run() {
 	super.run();
 
+	// from now on, the last process to exit halts the machine
+	running = true;
+
 	UserProcess process = UserProcess.newUserProcess();
 	
 	String shellProgram = Machine.getShellProgramName();	
@@ -124,15 +138,37 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. If the <tt>nachos.conf</tt> key
+     * <tt>UserKernel.syscallStats</tt> is set, first prints how many times
+     * each syscall was called and how long the calls took, and how well the
+     * executable cache and shared text worked.
      */
     public void terminate() {
+	if (Config.getBoolean("UserKernel.syscallStats", false)) {
+	    UserProcess.syscalls.print();
+	    System.out.println("Executable cache: hits " + CoffCache.getHits()
+			       + ", misses " + CoffCache.getMisses()
+			       + ", pages from cache " + CoffCache.getPageHits()
+			       + ", pages read " + CoffCache.getPageReads());
+	    System.out.println("Shared text: loads " + SharedText.getLoads()
+			       + ", shares " + SharedText.getShares());
+	}
+
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the pool of physical frames. */
+    public static FrameAllocator frames;
+
+    /**
+     * Whether the kernel has started running user programs, after its self
+     * tests. Once it has, the last process to exit halts the machine.
+     */
+    static boolean running = false;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
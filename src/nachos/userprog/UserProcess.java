@@ -4,7 +4,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,15 +23,17 @@ public class UserProcess {
    * Allocate a new process.
    */
   public UserProcess() {
-    // set up fd mapper, default 0 and 1 to stdin and stdout
-    fdMap = new OpenFile[MAX_OPEN_FILES];
-    fdMap[0] = UserKernel.console.openForReading();
-    fdMap[1] = UserKernel.console.openForWriting();
+    // set up the file table, with fds 0 and 1 as stdin and stdout
+    files = new FileTable();
+    files.add(UserKernel.console.openForReading());
+    files.add(UserKernel.console.openForWriting());
 
-    int numPhysPages = Machine.processor().getNumPhysPages();
-    pageTable = new TranslationEntry[numPhysPages];
-    for (int i=0; i<numPhysPages; i++)
-      pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+    // no pages are mapped until a program is loaded
+    pageTable = new TranslationEntry[0];
+
+    boolean intStatus = Machine.interrupt().disable();
+    processID = nextProcessID++;
+    Machine.interrupt().restore(intStatus);
   }
   
   /**
@@ -42,7 +44,28 @@ public class UserProcess {
    * @return	a new process of the correct class.
    */
   public static UserProcess newUserProcess() {
-    return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
+    // after a few reflective calls, Java generates a class loader for them,
+    // which the security manager forbids, so only the first process is
+    // constructed by name
+    if (firstProcess == null) {
+      firstProcess =
+	(UserProcess)Lib.constructObject(Machine.getProcessClassName());
+      return firstProcess;
+    }
+    
+    UserProcess process = firstProcess.newProcess();
+    Lib.assertTrue(process.getClass() == firstProcess.getClass());
+    return process;
+  }
+  
+  /**
+   * Allocate a new process of the same class as this one. Subclasses must
+   * override this.
+   *
+   * @return	a new process.
+   */
+  protected UserProcess newProcess() {
+    return new UserProcess();
   }
   
   /**
@@ -57,7 +80,12 @@ public class UserProcess {
     if (!load(name, args))
       return false;
     
-    new UThread(this).setName(name).fork();
+    boolean intStatus = Machine.interrupt().disable();
+    numRunning++;
+    Machine.interrupt().restore(intStatus);
+    
+    thread = new UThread(this);
+    thread.setName(name).fork();
     
     return true;
   }
@@ -134,18 +162,7 @@ public class UserProcess {
    */
   public int readVirtualMemory(int vaddr, byte[] data, int offset,
 			       int length) {
-    Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-    
-    byte[] memory = Machine.processor().getMemory();
-    
-    // for now, just assume that virtual addresses equal physical addresses
-    if (vaddr < 0 || vaddr >= memory.length)
-      return 0;
-    
-    int amount = Math.min(length, memory.length-vaddr);
-    System.arraycopy(memory, vaddr, data, offset, amount);
-    
-    return amount;
+    return transferVirtualMemory(vaddr, data, offset, length, false);
   }
   
   /**
@@ -177,25 +194,164 @@ public class UserProcess {
    */
   public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				int length) {
+    return transferVirtualMemory(vaddr, data, offset, length, true);
+  }
+  
+  /**
+   * Copy data between this process's virtual memory and an array, walking
+   * the page table. Each virtual page is translated once, and each run of
+   * pages that are also contiguous in physical memory is copied with a
+   * single <tt>System.arraycopy()</tt>. Pages that have not been loaded yet
+   * are loaded first. The copy stops at the first page that is not mapped,
+   * or, when writing, that is read-only.
+   *
+   * @param	vaddr	the first byte of virtual memory to transfer.
+   * @param	data	the array to transfer to or from.
+   * @param	offset	the first byte of the array to transfer.
+   * @param	length	the number of bytes to transfer.
+   * @param	write	<tt>true</tt> to copy from the array to virtual
+   *			memory, <tt>false</tt> to copy the other way.
+   * @return	the number of bytes successfully transferred.
+   */
+  private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+				    int length, boolean write) {
     Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
     
     byte[] memory = Machine.processor().getMemory();
     
-    // for now, just assume that virtual addresses equal physical addresses
-    if (vaddr < 0 || vaddr >= memory.length)
-      return 0;
+    int amount = 0;
+    int paddr = (length > 0) ? translate(vaddr, write) : -1;
     
-    int amount = Math.min(length, memory.length-vaddr);
-    System.arraycopy(data, offset, memory, vaddr, amount);
+    while (paddr >= 0) {
+      // extend the run while the next page follows this one physically
+      int runStart = paddr;
+      int runLength = 0;
+      do {
+	runLength += Math.min(length - amount - runLength,
+			      pageSize - Processor.offsetFromAddress(paddr));
+	paddr = (amount + runLength < length)
+	  ? translate(vaddr + amount + runLength, write) : -1;
+      } while (paddr >= 0 && paddr == runStart + runLength);
+      
+      if (write)
+	System.arraycopy(data, offset + amount, memory, runStart, runLength);
+      else
+	System.arraycopy(memory, runStart, data, offset + amount, runLength);
+      
+      amount += runLength;
+    }
     
     return amount;
   }
   
+  /**
+   * Translate a virtual address for a transfer by
+   * <tt>transferVirtualMemory()</tt>, and mark its page used, and dirty if
+   * it is being written.
+   *
+   * @param	vaddr	the virtual address to translate.
+   * @param	write	<tt>true</tt> if the page is being written.
+   * @return	the physical address, or -1 if the page is not mapped or is
+   *		read-only and being written.
+   */
+  private int translate(int vaddr, boolean write) {
+    if (vaddr < 0)
+      return -1;
+    
+    int vpn = Processor.pageFromAddress(vaddr);
+    if (vpn >= pageTable.length)
+      return -1;
+    
+    TranslationEntry entry = pageTable[vpn];
+    if (entry != null && !entry.valid)
+      handlePageFault(vaddr);
+    
+    if (entry == null || !entry.valid || (write && entry.readOnly)
+	|| entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+      return -1;
+    
+    entry.used = true;
+    if (write)
+      entry.dirty = true;
+    
+    return Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(vaddr));
+  }
+  
+  /**
+   * Measure <tt>readVirtualMemory()</tt> and <tt>writeVirtualMemory()</tt>
+   * on buffers of 1 KB to 1 MB, and print the host time per megabyte
+   * transferred. Each size is run twice: with every page of the address
+   * space physically contiguous, so that a transfer is a single copy, and
+   * with the pages in reverse physical order, so that every page is copied
+   * separately. Buffers larger than physical memory are transferred in
+   * pieces. Overwrites all of physical memory, so must be run before any
+   * program is loaded.
+   */
+  public static void benchmarkVirtualMemory() {
+    UserProcess process = new UserProcess();
+    int numPhysPages = Machine.processor().getNumPhysPages();
+    int space = numPhysPages*pageSize;
+    
+    TranslationEntry[] contiguous = new TranslationEntry[numPhysPages];
+    for (int i=0; i<numPhysPages; i++)
+      contiguous[i] = new TranslationEntry(i, i, true,false,false,false);
+    TranslationEntry[] scattered = new TranslationEntry[numPhysPages];
+    for (int i=0; i<numPhysPages; i++)
+      scattered[i] = new TranslationEntry(i, numPhysPages-1-i,
+					  true,false,false,false);
+    
+    // a transfer that crosses an invalid page stops there
+    byte[] check = new byte[3*pageSize];
+    process.pageTable = scattered;
+    scattered[2].valid = false;
+    Lib.assertTrue(process.writeVirtualMemory(pageSize/2, check) ==
+		   pageSize + pageSize/2);
+    Lib.assertTrue(scattered[1].used && scattered[1].dirty);
+    scattered[2].valid = true;
+    
+    for (int size=1024; size<=1024*1024; size*=4) {
+      byte[] buffer = new byte[size];
+      int reps = Math.max(1, totalBenchmarkBytes / size);
+      long[] nanos = new long[2];
+      
+      for (int t=0; t<2; t++) {
+	process.pageTable = (t == 0) ? contiguous : scattered;
+	
+	// the first run only warms up the JIT
+	copyBenchmark(process, buffer, space, reps);
+	nanos[t] = copyBenchmark(process, buffer, space, reps);
+      }
+      
+      long bytes = 2L*reps*size;
+      System.out.println("virtual memory copy, " + size + " bytes: "
+			 + "contiguous " + nanos[0]*1024*1024/bytes
+			 + " ns/MB, scattered " + nanos[1]*1024*1024/bytes
+			 + " ns/MB");
+    }
+  }
+  
+  private static long copyBenchmark(UserProcess process, byte[] buffer,
+				    int space, int reps) {
+    long start = System.nanoTime();
+    
+    for (int r=0; r<reps; r++) {
+      for (int done=0; done<buffer.length; ) {
+	int n = Math.min(buffer.length-done, space);
+	Lib.assertTrue(process.writeVirtualMemory(0, buffer, done, n) == n);
+	Lib.assertTrue(process.readVirtualMemory(0, buffer, done, n) == n);
+	done += n;
+      }
+    }
+    
+    return System.nanoTime() - start;
+  }
+  
   /**
    * Load the executable with the specified name into this process, and
    * prepare to pass it the specified arguments. Opens the executable, reads
    * its header information, and copies sections and arguments into this
-   * process's virtual memory.
+   * process's virtual memory. An executable that was run recently is found,
+   * already open and parsed, in the <tt>CoffCache</tt>.
    *
    * @param	name	the name of the file containing the executable.
    * @param	args	the arguments to pass to the executable.
@@ -204,27 +360,18 @@ public class UserProcess {
   private boolean load(String name, String[] args) {
     Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
     
-    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-    if (executable == null) {
-      Lib.debug(dbgProcess, "\topen failed");
+    image = CoffCache.open(name);
+    if (image == null)
       return false;
-    }
     
-    try {
-      coff = new Coff(executable);
-    }
-    catch (EOFException e) {
-      executable.close();
-      Lib.debug(dbgProcess, "\tcoff load failed");
-      return false;
-    }
+    coff = image.getCoff();
     
     // make sure the sections are contiguous and start at page 0
     numPages = 0;
     for (int s=0; s<coff.getNumSections(); s++) {
       CoffSection section = coff.getSection(s);
       if (section.getFirstVPN() != numPages) {
-	coff.close();
+	CoffCache.release(image);
 	Lib.debug(dbgProcess, "\tfragmented executable");
 	return false;
       }
@@ -240,7 +387,7 @@ public class UserProcess {
       argsSize += 4 + argv[i].length + 1;
     }
     if (argsSize > pageSize) {
-      coff.close();
+      CoffCache.release(image);
       Lib.debug(dbgProcess, "\targuments too long");
       return false;
     }
@@ -280,32 +427,100 @@ public class UserProcess {
   }
   
   /**
-   * Allocates memory for this process, and loads the COFF sections into
-   * memory. If this returns successfully, the process will definitely be
-   * run (this is the last step in process initialization that can fail).
+   * Allocates memory for this process, and maps the COFF sections into it.
+   * Every page starts out invalid, and is read from the executable, or
+   * zero-filled, by <tt>handlePageFault()</tt> the first time it is used.
+   * If this returns successfully, the process will definitely be run (this
+   * is the last step in process initialization that can fail).
    *
    * @return	<tt>true</tt> if the sections were successfully loaded.
    */
   protected boolean loadSections() {
-    if (numPages > Machine.processor().getNumPhysPages()) {
-      coff.close();
+    pageTable = new TranslationEntry[numPages];
+    
+    // read-only sections live in frames shared by every process running
+    // this executable
+    text = SharedText.acquire(image, numPages);
+    if (text == null) {
+      CoffCache.release(image);
       Lib.debug(dbgProcess, "\tinsufficient physical memory");
       return false;
     }
     
-    // load sections
+    // count the pages this process needs frames of its own for, and don't
+    // start it if they would leave too little memory for running processes
+    int numPrivate = 0;
+    for (int vpn=0; vpn<numPages; vpn++) {
+      if (text.getFrame(vpn) < 0)
+	numPrivate++;
+    }
+    
+    if (!UserKernel.frames.canAdmit(numPrivate)) {
+      unloadSections();
+      Lib.debug(dbgProcess, "\tinsufficient physical memory");
+      return false;
+    }
+    
+    // a contiguous run lets transfers between the kernel and this process
+    // copy several pages at once, but any free frames will do. Frames are
+    // allocated now, so that a page fault never runs out of memory.
+    int nextFrame = UserKernel.frames.allocate(processID, numPrivate);
+    
+    for (int vpn=0; vpn<numPages; vpn++) {
+      int ppn = text.getFrame(vpn);
+      boolean shared = (ppn >= 0);
+      
+      if (!shared) {
+	ppn = (nextFrame >= 0) ? nextFrame++
+	  : UserKernel.frames.allocate(processID);
+	if (ppn < 0) {
+	  unloadSections();
+	  Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	  return false;
+	}
+      }
+      
+      pageTable[vpn] = new TranslationEntry(vpn, ppn, false, shared,
+					    false, false);
+    }
+    
     for (int s=0; s<coff.getNumSections(); s++) {
       CoffSection section = coff.getSection(s);
       
-      Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+      Lib.debug(dbgProcess, "\t" + (section.isReadOnly() ? "sharing " :
+				      "mapping ") + section.getName()
 		+ " section (" + section.getLength() + " pages)");
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Handle a page fault by filling the faulting page: from the executable
+   * for a page of a section, or with zeros for the stack and arguments. A
+   * read-only page is shared, so it is only read if no other process has
+   * read it yet.
+   *
+   * @param	vaddr	the faulting virtual address.
+   * @return	<tt>true</tt> if the page is now valid, <tt>false</tt> if
+   *		the address is not mapped at all, no executable is loaded to
+   *		fill it from, or the executable has changed so that the page
+   *		can no longer be read.
+   */
+  protected boolean handlePageFault(int vaddr) {
+    int vpn = Processor.pageFromAddress(vaddr);
+    if (vaddr < 0 || vpn >= pageTable.length || pageTable[vpn] == null
+	|| image == null)
+      return false;
+    
+    TranslationEntry entry = pageTable[vpn];
+    if (!entry.valid) {
+      boolean loaded = entry.readOnly
+	? text.loadSharedPage(vpn) : image.loadPage(vpn, entry.ppn);
+      if (!loaded)
+	return false;
       
-      for (int i=0; i<section.getLength(); i++) {
-	int vpn = section.getFirstVPN()+i;
-	
-	// for now, just assume virtual addresses=physical addresses
-	section.loadPage(i, vpn);
-      }
+      entry.valid = true;
     }
     
     return true;
@@ -315,6 +530,17 @@ public class UserProcess {
    * Release any resources allocated by <tt>loadSections()</tt>.
    */
   protected void unloadSections() {
+    for (int vpn=0; vpn<pageTable.length; vpn++) {
+      if (pageTable[vpn] != null && text.getFrame(vpn) < 0)
+	UserKernel.frames.free(pageTable[vpn].ppn);
+    }
+    pageTable = new TranslationEntry[0];
+    
+    text.release();
+    text = null;
+    
+    CoffCache.release(image);
+    image = null;
   }    
   
   /**
@@ -344,113 +570,531 @@ public class UserProcess {
    * Handle the halt() system call. 
    */
   private int handleHalt() {
+    // only a process started by the kernel may halt the machine
+    if (!isRoot)
+    {
+      return -1;
+    }// if
     
-    Machine.halt();
+    Kernel.kernel.terminate();
     
     Lib.assertNotReached("Machine.halt() did not halt machine!");
     return 0;
   }
 
-  private int handleExit(int a0) {
-    String argAddress = readVirtualMemoryString(a0, 256);
+  private int handleExit(int status) {
+    exit(status, true);
     
-    // TODO Auto-generated method stub
+    Lib.assertNotReached("exit() returned");
     return 0;
   }//handleExit
   
-  private int handleJoin(int a0, int a1) {
-    String argAddress = readVirtualMemoryString(a0, 256);
-    // TODO Auto-generated method stub
-    return 0;
+  private int handleExec(int nameAddr, int argc, int argvAddr) {
+    String fileName = readVirtualMemoryString(nameAddr, 256);
+    
+    if(fileName == null || !fileName.endsWith(".coff")
+       || argc < 0 || argc > pageSize/4)
+    {
+      return -1;
+    }// if
+    
+    // read the argv pointers, and then the strings they point to
+    String[] args = new String[argc];
+    byte[] argPointer = new byte[4];
+    for(int i = 0; i < argc; i++)
+    {
+      if(readVirtualMemory(argvAddr + 4*i, argPointer) != 4)
+      {
+	return -1;
+      }// if
+      
+      args[i] = readVirtualMemoryString(Lib.bytesToInt(argPointer, 0), 256);
+      if(args[i] == null)
+      {
+	return -1;
+      }// if
+    }// for
+    
+    UserProcess child = newUserProcess();
+    child.isRoot = false;
+    
+    if(!child.execute(fileName, args))
+    {
+      child.files.closeAll();
+      return -1;
+    }// if
+    
+    children.put(child.processID, child);
+    return child.processID;
+  }//handleExec
+  
+  private int handleJoin(int processID, int statusAddr) {
+    // only a child that has not been joined yet can be joined
+    UserProcess child = children.remove(processID);
+    
+    if(child == null)
+    {
+      return -1;
+    }// if
+    
+    child.thread.join();
+    
+    if(!child.exitedNormally)
+    {
+      return 0;
+    }// if
+    
+    writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+    return 1;
   }//handleJoin
   
+  /**
+   * Terminate this process: close its files, free its memory, and finish
+   * its thread, waking a parent waiting in <tt>join()</tt>. If this is the
+   * last process and the kernel is running user programs, halt the machine.
+   * Never returns.
+   *
+   * @param	status	the exit status.
+   * @param	normal	<tt>true</tt> if the process called <tt>exit()</tt>,
+   *			<tt>false</tt> if it is being killed because of an
+   *			exception.
+   */
+  private void exit(int status, boolean normal) {
+    Lib.debug(dbgProcess, "UserProcess.exit(" + status + ") pid "
+	      + processID + (normal ? "" : " (killed)") + ", "
+	      + UserKernel.frames.getUsage(processID) + " frames");
+    
+    files.closeAll();
+    unloadSections();
+    
+    // children that were never joined carry on without a parent
+    children.clear();
+    
+    exitStatus = status;
+    exitedNormally = normal;
+    
+    boolean intStatus = Machine.interrupt().disable();
+    boolean last = (--numRunning == 0);
+    Machine.interrupt().restore(intStatus);
+    
+    if (last && UserKernel.running)
+      Kernel.kernel.terminate();
+    
+    KThread.finish();
+  }
+  
   private int handleCreate(int nameAddr) {
     String fileName = readVirtualMemoryString(nameAddr, 256);
 
+    // truncating the executable of a running process would pull its
+    // unread pages out from under it
+    if(!CoffCache.beginWrite(fileName))
+    {
+      return -1;
+    }// if
+    
     OpenFile createdFile = ThreadedKernel.fileSystem.open(fileName, true);
-    return fdMapPut(createdFile);
+    if(createdFile == null && fileName != null)
+    {
+      // cached executables may be holding every file that can be open
+      CoffCache.flush();
+      createdFile = ThreadedKernel.fileSystem.open(fileName, true);
+    }// if
+    
+    CoffCache.endWrite(fileName);
+    
+    int fd = files.add(createdFile);
+    if(fd == -1 && createdFile != null)
+    {
+      // the descriptor table is full
+      createdFile.close();
+    }// if
+    
+    return fd;
   }//handleCreate
   
   private int handleOpen(int nameAddr) {
     String fileName = readVirtualMemoryString(nameAddr, 256);
 
     OpenFile openedFile = ThreadedKernel.fileSystem.open(fileName, false);
-    return fdMapPut(openedFile);
+    if(openedFile == null && fileName != null)
+    {
+      // cached executables may be holding every file that can be open
+      CoffCache.flush();
+      openedFile = ThreadedKernel.fileSystem.open(fileName, false);
+    }// if
+    
+    int fd = files.add(openedFile);
+    if(fd == -1 && openedFile != null)
+    {
+      // the descriptor table is full
+      openedFile.close();
+    }// if
+    
+    return fd;
   }//handleOpen
   
   private int handleRead(int fd, int bufAddr, int count) {
-    if(fd < 0 || fd >= MAX_OPEN_FILES)
+    OpenFile fileToRead = files.get(fd);
+    
+    if(fileToRead == null || count < 0)
     {
       return -1;
     }// if
     
-    OpenFile fileToRead = fdMap[fd];
+    return readFile(fileToRead, bufAddr, count);
+  }//handleRead
+  
+  private int handleWrite(int fd, int bufAddr, int count) {
+    OpenFile fileToWrite = files.get(fd);
     
-    if(fileToRead == null)
+    if(fileToWrite == null || count < 0)
     {
-      // given fd currently not in use
       return -1;
     }// if
     
-    byte[] buffer = new byte[count];
-
-    int numBytesRead = fileToRead.read(buffer, 0, count);
-
-    if(numBytesRead < 0)
+    return writeFile(fileToWrite, bufAddr, count);
+  }//handleWrite
+  
+  private int handleReadv(int fd, int iovAddr, int iovCount) {
+    return handleVectored(fd, iovAddr, iovCount, false);
+  }//handleReadv
+  
+  private int handleWritev(int fd, int iovAddr, int iovCount) {
+    return handleVectored(fd, iovAddr, iovCount, true);
+  }//handleWritev
+  
+  /**
+   * Handle <tt>readv()</tt> or <tt>writev()</tt>: transfer the buffers
+   * described by an array of <i>iovCount</i> iovecs at <i>iovAddr</i>, in
+   * order, stopping after the first buffer that is not transferred in full.
+   * An iovec is a pointer to a buffer followed by its length, each 4 bytes.
+   *
+   * @return	the total number of bytes transferred, or -1 if the arguments
+   *		are invalid or the first buffer fails.
+   */
+  private int handleVectored(int fd, int iovAddr, int iovCount,
+			     boolean write) {
+    OpenFile file = files.get(fd);
+    
+    if(file == null || iovCount < 0 || iovCount > MAX_IOVECS)
     {
-      return numBytesRead;
+      return -1;
     }// if
-
-    writeVirtualMemory(bufAddr, buffer);
-    return numBytesRead;
-  }//handleRead
+    
+    int iovLength = iovCount * IOVEC_SIZE;
+    if(readVirtualMemory(iovAddr, iovBuffer, 0, iovLength) != iovLength)
+    {
+      return -1;
+    }// if
+    
+    // reject bad lengths before transferring anything
+    for(int i = 0; i < iovCount; i++)
+    {
+      if(Lib.bytesToInt(iovBuffer, i*IOVEC_SIZE + 4) < 0)
+      {
+	return -1;
+      }// if
+    }// for
+    
+    int total = 0;
+    for(int i = 0; i < iovCount; i++)
+    {
+      int bufAddr = Lib.bytesToInt(iovBuffer, i*IOVEC_SIZE);
+      int count = Lib.bytesToInt(iovBuffer, i*IOVEC_SIZE + 4);
+      
+      int amount = write ? writeFile(file, bufAddr, count)
+	: readFile(file, bufAddr, count);
+      if(amount < 0)
+      {
+	return (total == 0) ? -1 : total;
+      }// if
+      
+      total += amount;
+      if(amount < count)
+      {
+	break;
+      }// if
+    }// for
+    
+    return total;
+  }//handleVectored
   
-  private int handleWrite(int fd, int bufAddr, int count) {
-    if(fd < 0 || fd >= MAX_OPEN_FILES)
+  /**
+   * Register the submission and completion rings used by
+   * <tt>ring_enter()</tt>. The memory is checked once here, by reading the
+   * rings and writing back what was read, so that a bad address is reported
+   * now rather than by a later <tt>ring_enter()</tt>.
+   *
+   * @return	0, or -1 if <i>entries</i> is not a power of two up to
+   *		<tt>MAX_RING_ENTRIES</tt> or the memory is not writable.
+   */
+  private int handleRingRegister(int ringAddr, int sqesAddr, int cqesAddr,
+				 int entries) {
+    if(entries <= 0 || entries > MAX_RING_ENTRIES
+       || (entries & (entries - 1)) != 0)
     {
       return -1;
     }// if
-
-    OpenFile fileToWrite = fdMap[fd];
     
-    if(fileToWrite == null)
+    byte[] sqes = new byte[entries * RING_SQE_SIZE];
+    byte[] cqes = new byte[entries * RING_CQE_SIZE];
+    byte[] header = new byte[RING_HEADER_SIZE];
+    
+    if(readVirtualMemory(ringAddr, header) != header.length
+       || writeVirtualMemory(ringAddr, header) != header.length
+       || readVirtualMemory(sqesAddr, sqes) != sqes.length
+       || readVirtualMemory(cqesAddr, cqes) != cqes.length
+       || writeVirtualMemory(cqesAddr, cqes) != cqes.length)
     {
-      // given fd currently not in use
       return -1;
     }// if
     
-    byte[] buffer = new byte[count];
-    readVirtualMemory(bufAddr, buffer);
-
-    int numBytesWritten = fileToWrite.write(buffer, 0, count);
-
-    return numBytesWritten;
-  }//handleWrite
+    this.ringAddr = ringAddr;
+    this.sqesAddr = sqesAddr;
+    this.cqesAddr = cqesAddr;
+    ringEntries = entries;
+    ringSqes = sqes;
+    ringCqes = cqes;
+    ringHeader = header;
+    
+    return 0;
+  }//handleRingRegister
   
-  private int handleClose(int fd) {
-    if(fd < 0 || fd >= MAX_OPEN_FILES)
+  /**
+   * Carry out up to <i>count</i> requests from the registered submission
+   * ring, posting a completion for each. The requests are read with at most
+   * two copies, one on each side of the end of the ring, and the completions
+   * are written back the same way, so a batch costs one trap and a handful
+   * of copies however many requests it holds. Each request is dispatched
+   * through <tt>handleSyscall()</tt>, and counted in the syscall statistics.
+   *
+   * @return	the number of requests carried out, or -1 if no ring is
+   *		registered, <i>count</i> is negative, or the ring is corrupt.
+   */
+  private int handleRingEnter(int count) {
+    if(ringEntries == 0 || count < 0
+       || readVirtualMemory(ringAddr, ringHeader) != RING_HEADER_SIZE)
     {
       return -1;
     }// if
-
-    OpenFile fileToClose = fdMap[fd];
     
-    if(fileToClose == null)
+    int sqHead = Lib.bytesToInt(ringHeader, 0);
+    int sqTail = Lib.bytesToInt(ringHeader, 4);
+    int cqHead = Lib.bytesToInt(ringHeader, 8);
+    int cqTail = Lib.bytesToInt(ringHeader, 12);
+    
+    // the indices wrap around, so only their differences mean anything
+    int pending = sqTail - sqHead;
+    int cqFree = ringEntries - (cqTail - cqHead);
+    if(pending < 0 || pending > ringEntries
+       || cqFree < 0 || cqFree > ringEntries)
     {
-      // given fd currently not in use
       return -1;
     }// if
-
-    fileToClose.close();
-    fdMap[fd] = null;
-
-    return 0;
+    
+    int n = Math.min(count, Math.min(pending, cqFree));
+    if(n == 0)
+    {
+      return 0;
+    }// if
+    
+    if(!transferRing(sqesAddr, RING_SQE_SIZE, sqHead, n, ringSqes, false))
+    {
+      return -1;
+    }// if
+    
+    for(int i = 0; i < n; i++)
+    {
+      int sqe = i * RING_SQE_SIZE;
+      int opcode = Lib.bytesToInt(ringSqes, sqe);
+      int result = -1;
+      
+      if(isRingOp(opcode))
+      {
+	syscalls.count(opcode);
+	long start = Machine.timer().getTime();
+	
+	result = handleSyscall(opcode,
+			       Lib.bytesToInt(ringSqes, sqe + 4),
+			       Lib.bytesToInt(ringSqes, sqe + 8),
+			       Lib.bytesToInt(ringSqes, sqe + 12), 0);
+	
+	syscalls.record(opcode, Machine.timer().getTime() - start);
+      }// if
+      
+      // user_data, then the result
+      System.arraycopy(ringSqes, sqe + 16, ringCqes, i * RING_CQE_SIZE, 4);
+      Lib.bytesFromInt(ringCqes, i * RING_CQE_SIZE + 4, result);
+    }// for
+    
+    if(!transferRing(cqesAddr, RING_CQE_SIZE, cqTail, n, ringCqes, true))
+    {
+      return -1;
+    }// if
+    
+    // publish the completions before consuming the requests
+    writeVirtualMemory(ringAddr + 12, Lib.bytesFromInt(cqTail + n));
+    writeVirtualMemory(ringAddr, Lib.bytesFromInt(sqHead + n));
+    
+    return n;
+  }//handleRingEnter
+  
+  /**
+   * Copy <i>count</i> ring entries, starting with entry <i>first</i>,
+   * between a ring in user memory and the start of a kernel buffer. The
+   * entries may wrap around the end of the ring, so this takes one or two
+   * copies.
+   */
+  private boolean transferRing(int base, int entrySize, int first, int count,
+			       byte[] buffer, boolean write) {
+    int index = first & (ringEntries - 1);
+    int before = Math.min(count, ringEntries - index) * entrySize;
+    int after = count * entrySize - before;
+    
+    if(write)
+    {
+      return writeVirtualMemory(base + index*entrySize, buffer, 0, before)
+	== before
+	&& writeVirtualMemory(base, buffer, before, after) == after;
+    }// if
+    
+    return readVirtualMemory(base + index*entrySize, buffer, 0, before)
+      == before
+      && readVirtualMemory(base, buffer, before, after) == after;
+  }//transferRing
+  
+  /**
+   * Return whether a syscall may be submitted through the ring: one that
+   * only works on files, and always returns.
+   */
+  private static boolean isRingOp(int opcode) {
+    switch (opcode) {
+    case syscallCreate:
+    case syscallOpen:
+    case syscallRead:
+    case syscallWrite:
+    case syscallClose:
+    case syscallUnlink:
+    case syscallReadv:
+    case syscallWritev:
+      return true;
+    default:
+      return false;
+    }
+  }
+  
+  /**
+   * Read up to <i>count</i> bytes from a file into this process's memory at
+   * <i>bufAddr</i>, a page at a time through this process's I/O buffer.
+   *
+   * @return	the number of bytes read, or -1 if nothing could be read
+   *		because of an error.
+   */
+  private int readFile(OpenFile file, int bufAddr, int count) {
+    int total = 0;
+    while(total < count)
+    {
+      int chunk = Math.min(count - total, ioBuffer.length);
+      int numBytesRead = file.read(ioBuffer, 0, chunk);
+      if(numBytesRead <= 0)
+      {
+	return (numBytesRead < 0 && total == 0) ? -1 : total;
+      }// if
+      
+      int numBytesCopied = writeVirtualMemory(bufAddr + total, ioBuffer, 0,
+					      numBytesRead);
+      total += numBytesCopied;
+      if(numBytesCopied < numBytesRead)
+      {
+	// the rest of the user's buffer is not valid
+	return (total == 0) ? -1 : total;
+      }// if
+      
+      // a short read means the file or console has nothing more for now
+      if(numBytesRead < chunk)
+      {
+	break;
+      }// if
+    }// while
+    
+    return total;
+  }//readFile
+  
+  /**
+   * Write up to <i>count</i> bytes from this process's memory at
+   * <i>bufAddr</i> to a file, a page at a time through this process's I/O
+   * buffer.
+   *
+   * @return	the number of bytes written, or -1 if nothing could be
+   *		written because of an error, or because the file is the
+   *		executable of a running process.
+   */
+  private int writeFile(OpenFile file, int bufAddr, int count) {
+    // a file that is written may be an executable the kernel has cached,
+    // or one that a process is running and so must not change
+    boolean onFileSystem = (file.getFileSystem() != null);
+    if(onFileSystem && !CoffCache.beginWrite(file.getName()))
+    {
+      return -1;
+    }// if
+    
+    int total = copyToFile(file, bufAddr, count);
+    
+    if(onFileSystem)
+    {
+      CoffCache.endWrite(file.getName());
+    }// if
+    
+    return total;
+  }//writeFile
+  
+  /**
+   * Do the copying for <tt>writeFile()</tt>.
+   */
+  private int copyToFile(OpenFile file, int bufAddr, int count) {
+    int total = 0;
+    while(total < count)
+    {
+      int chunk = Math.min(count - total, ioBuffer.length);
+      int numBytesCopied = readVirtualMemory(bufAddr + total, ioBuffer, 0,
+					     chunk);
+      if(numBytesCopied == 0)
+      {
+	// the rest of the user's buffer is not valid
+	return (total == 0) ? -1 : total;
+      }// if
+      
+      int numBytesWritten = file.write(ioBuffer, 0, numBytesCopied);
+      if(numBytesWritten <= 0)
+      {
+	return (numBytesWritten < 0 && total == 0) ? -1 : total;
+      }// if
+      
+      total += numBytesWritten;
+      if(numBytesWritten < chunk)
+      {
+	break;
+      }// if
+    }// while
+    
+    return total;
+  }//copyToFile
+  
+  private int handleClose(int fd) {
+    // the file itself is closed once no fd refers to it
+    return files.close(fd) ? 0 : -1;
   }//handleClose
   
   private int handleUnlink(int nameAddr) {
     String fileName = readVirtualMemoryString(nameAddr, 256);
 
     boolean removedSuccessfully = ThreadedKernel.fileSystem.remove(fileName);
+    if(removedSuccessfully)
+    {
+      CoffCache.modified(fileName);
+    }// if
+    
     return removedSuccessfully ? 0 : -1;
   }//handleUnlink
   
@@ -465,7 +1109,12 @@ public class UserProcess {
     syscallRead = 6,
     syscallWrite = 7,
     syscallClose = 8,
-    syscallUnlink = 9;
+    syscallUnlink = 9,
+    syscallReadv = 13,
+    syscallWritev = 14,
+    syscallRingRegister = 15,
+    syscallRingEnter = 16,
+    maxSyscalls = 32;
   
   /**
    * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -486,6 +1135,14 @@ public class UserProcess {
    *								</tt></td></tr>
    * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
    * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+   * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+   *								</tt></td></tr>
+   * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov,
+   *					int iovcnt);</tt></td></tr>
+   * <tr><td>15</td><td><tt>int  ring_register(struct ring *ring,
+   *		struct ring_sqe *sqes, struct ring_cqe *cqes, int entries);
+   *								</tt></td></tr>
+   * <tr><td>16</td><td><tt>int  ring_enter(int count);</tt></td></tr>
    * </table>
    * 
    * @param	syscall	the syscall number.
@@ -496,34 +1153,107 @@ public class UserProcess {
    * @return	the value to be returned to the user.
    */
   public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-    switch (syscall) {
-    case syscallHalt:
-      return handleHalt();//TO-DO: Add arguments to methods
-    case syscallExit:
-      return handleExit(a0);
-    case syscallJoin:
-      return handleJoin(a0,a1);
-    case syscallCreate:
-      return handleCreate(a0);
-    case syscallOpen:
-      return handleOpen(a0);
-    case syscallRead:
-      return handleRead(a0,a1,a2);
-    case syscallWrite:
-      return handleWrite(a0,a1,a2);
-    case syscallClose:
-      return handleClose(a0);
-    case syscallUnlink:
-      return handleUnlink(a0);
-      //readVirtualMemoryString() <---Translates v.m to physical
-      //ThreadedKernel.filesystem.open
-    default:
+    SyscallTable.Handler handler = syscalls.get(syscall);
+    if (handler == null) {
       Lib.debug(dbgProcess, "Unknown syscall " + syscall);
       Lib.assertNotReached("Unknown system call!");
     }
-    return 0;
+    
+    return handler.handle(this, a0, a1, a2, a3);
+  }
+  
+  /**
+   * Set the handler that <tt>handleSyscall()</tt> calls for a syscall,
+   * replacing any handler already registered for it. Subclasses register
+   * the syscalls they add, such as <tt>mmap()</tt> or <tt>connect()</tt>, in
+   * a static initializer.
+   *
+   * @param	syscall	the syscall number.
+   * @param	name	the name of the syscall, for statistics.
+   * @param	handler	the handler.
+   */
+  protected static void registerSyscall(int syscall, String name,
+					SyscallTable.Handler handler) {
+    syscalls.register(syscall, name, handler);
   }
   
+  /** Every syscall, indexed by number, with call counts and latencies. */
+  static SyscallTable syscalls = new SyscallTable(maxSyscalls);
+  
+  static {
+    registerSyscall(syscallHalt, "halt", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleHalt();
+	}
+      });
+    registerSyscall(syscallExit, "exit", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleExit(a0);
+	}
+      });
+    registerSyscall(syscallExec, "exec", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleExec(a0, a1, a2);
+	}
+      });
+    registerSyscall(syscallJoin, "join", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleJoin(a0, a1);
+	}
+      });
+    registerSyscall(syscallCreate, "creat", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleCreate(a0);
+	}
+      });
+    registerSyscall(syscallOpen, "open", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleOpen(a0);
+	}
+      });
+    registerSyscall(syscallRead, "read", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleRead(a0, a1, a2);
+	}
+      });
+    registerSyscall(syscallWrite, "write", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleWrite(a0, a1, a2);
+	}
+      });
+    registerSyscall(syscallClose, "close", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleClose(a0);
+	}
+      });
+    registerSyscall(syscallUnlink, "unlink", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleUnlink(a0);
+	}
+      });
+    registerSyscall(syscallReadv, "readv", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleReadv(a0, a1, a2);
+	}
+      });
+    registerSyscall(syscallWritev, "writev", new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleWritev(a0, a1, a2);
+	}
+      });
+    registerSyscall(syscallRingRegister, "ring_register",
+		    new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleRingRegister(a0, a1, a2, a3);
+	}
+      });
+    registerSyscall(syscallRingEnter, "ring_enter",
+		    new SyscallTable.Handler() {
+	public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+	  return process.handleRingEnter(a0);
+	}
+      });
+  }
   
   /**
    * Handle a user exception. Called by
@@ -538,42 +1268,36 @@ public class UserProcess {
     
     switch (cause) {
     case Processor.exceptionSyscall:
-      int result = handleSyscall(processor.readRegister(Processor.regV0),
+      int syscall = processor.readRegister(Processor.regV0);
+      
+      // count the call first, since exit() and halt() don't return
+      syscalls.count(syscall);
+      long start = Machine.timer().getTime();
+      
+      int result = handleSyscall(syscall,
 				 processor.readRegister(Processor.regA0),
 				 processor.readRegister(Processor.regA1),
 				 processor.readRegister(Processor.regA2),
 				 processor.readRegister(Processor.regA3)
 	);
+      syscalls.record(syscall, Machine.timer().getTime() - start);
+      
       processor.writeRegister(Processor.regV0, result);
       processor.advancePC();
       break;				       
       
+    case Processor.exceptionPageFault:
+      if (!handlePageFault(processor.readRegister(Processor.regBadVAddr)))
+	exit(-1, false);
+      break;
+      
     default:
       Lib.debug(dbgProcess, "Unexpected exception: " +
 		Processor.exceptionNames[cause]);
-      Lib.assertNotReached("Unexpected exception");
+      exit(-1, false);
     }
   }
 
-  // puts the given file into an open slot in the file descriptor -> file object
-  // mapping.  returns the fd given to the file, or -1 if max fd capacity has been
-  // reached
-  private int fdMapPut(OpenFile fileToPut)
-  {
-    // iterate through array to find an open slot
-    for(int i = 0; i < MAX_OPEN_FILES; i++)
-    {
-      // if this fd is unused, stick the file in this slot
-      if(fdMap[i] == null)
-      {
-	fdMap[i] = fileToPut;
-	return i;
-      }// if
-    }// for
-
-    return -1; // no open slots
-  }// fdMapPut
-  
   /** The program being run by this process. */
   protected Coff coff;
   
@@ -588,11 +1312,55 @@ public class UserProcess {
   private int initialPC, initialSP;
   private int argc, argv;
   
+  /** The executable, as parsed and cached by the kernel. */
+  private CoffCache.Image image = null;
+  /** The read-only pages this process shares with others. */
+  private SharedText text = null;
+  
+  /** The thread running this process. */
+  private UThread thread = null;
+  private int processID;
+  /** Whether the kernel, rather than another process, started this one. */
+  private boolean isRoot = true;
+  /** The children this process has started and not yet joined. */
+  private HashMap<Integer,UserProcess> children =
+    new HashMap<Integer,UserProcess>();
+  private int exitStatus;
+  private boolean exitedNormally = false;
+  
+  private static UserProcess firstProcess = null;
+  private static int nextProcessID = 0;
+  private static int numRunning = 0;
+  
   private static final int pageSize = Processor.pageSize;
   private static final char dbgProcess = 'a';
+  private static final int totalBenchmarkBytes = 16*1024*1024;
 
-  public static final int MAX_OPEN_FILES = 16;
+  /** The most buffers one <tt>readv()</tt> or <tt>writev()</tt> may name. */
+  public static final int MAX_IOVECS = 16;
+  /** The size of an iovec in user memory: a pointer and a length. */
+  private static final int IOVEC_SIZE = 8;
 
   /** Mapping of file descriptor -> file object */
-  private OpenFile[] fdMap;
+  protected FileTable files;
+
+  /**
+   * Staging buffer for <tt>read()</tt> and <tt>write()</tt>, reused by every
+   * call so that transfers of any size allocate nothing.
+   */
+  private byte[] ioBuffer = new byte[pageSize];
+  /** Staging buffer for the iovec arrays of <tt>readv()</tt>/<tt>writev()</tt>. */
+  private byte[] iovBuffer = new byte[MAX_IOVECS * IOVEC_SIZE];
+
+  /** The most entries a ring registered by <tt>ring_register()</tt> may have. */
+  public static final int MAX_RING_ENTRIES = 256;
+  /** The sizes of a ring's indices, a request, and a completion. */
+  private static final int RING_HEADER_SIZE = 16, RING_SQE_SIZE = 20,
+    RING_CQE_SIZE = 8;
+
+  /** The rings registered by <tt>ring_register()</tt>, if any. */
+  private int ringAddr, sqesAddr, cqesAddr;
+  private int ringEntries = 0;
+  /** Staging buffers for a batch of requests and their completions. */
+  private byte[] ringSqes, ringCqes, ringHeader;
 }
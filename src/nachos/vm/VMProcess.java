@@ -16,6 +16,15 @@ public class VMProcess extends UserProcess {
 	super();
     }
 
+    /**
+     * Allocate a new process of the same class as this one.
+     *
+     * @return	a new process.
+     */
+    protected UserProcess newProcess() {
+	return new VMProcess();
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.